@@ -0,0 +1,149 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * The {@code /cds-services} discovery document, rendered once and served from memory until the services change.
+ * <p>
+ * The CR module builds its services from PlanDefinitions, so the document is re-rendered on the next request after a
+ * PlanDefinition was created, updated or deleted: on this server through storage hooks (when the write is about to
+ * commit and again after it committed), and on the other nodes through a resource change listener polling every
+ * {@code discoveryPollMillis}. Services registered in code rather than from a PlanDefinition are noticed by a change
+ * in the number of services.
+ */
+@Interceptor
+public class CdsDiscoveryDocumentCache implements IResourceChangeListener {
+	private static final String PLAN_DEFINITION = "PlanDefinition";
+
+	private final ICdsServiceRegistry cdsServiceRegistry;
+	private final ObjectWriter writer;
+	private volatile Document document;
+	// Incremented on every invalidation, so that a rendering started before it is not stored
+	private long generation;
+
+	public CdsDiscoveryDocumentCache(
+			ICdsServiceRegistry theCdsServiceRegistry,
+			ObjectMapper theObjectMapper,
+			CdsHooksProperties theCdsHooksProperties) {
+		cdsServiceRegistry = theCdsServiceRegistry;
+		writer = theCdsHooksProperties.isPrettyPrint()
+				? theObjectMapper.writerWithDefaultPrettyPrinter()
+				: theObjectMapper.writer();
+	}
+
+	public Document getDocument() throws JsonProcessingException {
+		long renderedGeneration;
+		synchronized (this) {
+			renderedGeneration = generation;
+		}
+		CdsServicesJson services = cdsServiceRegistry.getCdsServicesJson();
+		int serviceCount = services.getServices() != null ? services.getServices().size() : 0;
+		Document current = document;
+		if (current == null || current.serviceCount != serviceCount) {
+			byte[] body = writer.writeValueAsBytes(services);
+			current = new Document(body, "\"" + DigestUtils.sha256Hex(body).substring(0, 32) + "\"", serviceCount);
+			synchronized (this) {
+				// Invalidated while rendering: this caller gets what it read, the next one renders again
+				if (generation == renderedGeneration) {
+					document = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	public synchronized void invalidate() {
+		generation++;
+		document = null;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		resourceChanged(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	private void resourceChanged(IBaseResource theResource) {
+		if (theResource == null || !PLAN_DEFINITION.equals(theResource.fhirType())) {
+			return;
+		}
+		invalidate();
+		// A request running concurrently may still render the old services until the transaction commits
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					invalidate();
+				}
+			});
+		}
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		invalidate();
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		invalidate();
+	}
+
+	public static class Document {
+		private final byte[] body;
+		private final String etag;
+		// Whole seconds, as sent in Last-Modified
+		private final long lastModified;
+		private final int serviceCount;
+
+		private Document(byte[] theBody, String theEtag, int theServiceCount) {
+			body = theBody;
+			etag = theEtag;
+			lastModified = System.currentTimeMillis() / 1000 * 1000;
+			serviceCount = theServiceCount;
+		}
+
+		public void writeTo(OutputStream theOutputStream) throws IOException {
+			theOutputStream.write(body);
+		}
+
+		public int getLength() {
+			return body.length;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+}
@@ -2,6 +2,9 @@ package ca.uhn.fhir.jpa.starter.cdshooks;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @ConfigurationProperties(prefix = "hapi.fhir.cdshooks")
 public class CdsHooksProperties {
 
@@ -24,4 +27,114 @@ public class CdsHooksProperties {
 	public void setClientIdHeaderName(String clientIdHeaderName) {
 		this.clientIdHeaderName = clientIdHeaderName;
 	}
+
+	private int prefetchThreads = 16;
+
+	public int getPrefetchThreads() {
+		return prefetchThreads;
+	}
+
+	public void setPrefetchThreads(int prefetchThreads) {
+		this.prefetchThreads = prefetchThreads;
+	}
+
+	private long prefetchTimeoutMillis = 10000;
+
+	public long getPrefetchTimeoutMillis() {
+		return prefetchTimeoutMillis;
+	}
+
+	public void setPrefetchTimeoutMillis(long prefetchTimeoutMillis) {
+		this.prefetchTimeoutMillis = prefetchTimeoutMillis;
+	}
+
+	private int prefetchMaxConnections = 100;
+
+	public int getPrefetchMaxConnections() {
+		return prefetchMaxConnections;
+	}
+
+	public void setPrefetchMaxConnections(int prefetchMaxConnections) {
+		this.prefetchMaxConnections = prefetchMaxConnections;
+	}
+
+	private int prefetchMaxConnectionsPerRoute = 20;
+
+	public int getPrefetchMaxConnectionsPerRoute() {
+		return prefetchMaxConnectionsPerRoute;
+	}
+
+	public void setPrefetchMaxConnectionsPerRoute(int prefetchMaxConnectionsPerRoute) {
+		this.prefetchMaxConnectionsPerRoute = prefetchMaxConnectionsPerRoute;
+	}
+
+	private int prefetchConnectTimeoutMillis = 5000;
+
+	public int getPrefetchConnectTimeoutMillis() {
+		return prefetchConnectTimeoutMillis;
+	}
+
+	public void setPrefetchConnectTimeoutMillis(int prefetchConnectTimeoutMillis) {
+		this.prefetchConnectTimeoutMillis = prefetchConnectTimeoutMillis;
+	}
+
+	private int prefetchSocketTimeoutMillis = 30000;
+
+	public int getPrefetchSocketTimeoutMillis() {
+		return prefetchSocketTimeoutMillis;
+	}
+
+	public void setPrefetchSocketTimeoutMillis(int prefetchSocketTimeoutMillis) {
+		this.prefetchSocketTimeoutMillis = prefetchSocketTimeoutMillis;
+	}
+
+	private int prefetchCacheTtlSeconds = 60;
+
+	public int getPrefetchCacheTtlSeconds() {
+		return prefetchCacheTtlSeconds;
+	}
+
+	public void setPrefetchCacheTtlSeconds(int prefetchCacheTtlSeconds) {
+		this.prefetchCacheTtlSeconds = prefetchCacheTtlSeconds;
+	}
+
+	private int prefetchCacheMaxPatients = 10000;
+
+	public int getPrefetchCacheMaxPatients() {
+		return prefetchCacheMaxPatients;
+	}
+
+	public void setPrefetchCacheMaxPatients(int prefetchCacheMaxPatients) {
+		this.prefetchCacheMaxPatients = prefetchCacheMaxPatients;
+	}
+
+	private boolean prettyPrint = true;
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	public void setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	private long discoveryPollMillis = 300000;
+
+	public long getDiscoveryPollMillis() {
+		return discoveryPollMillis;
+	}
+
+	public void setDiscoveryPollMillis(long discoveryPollMillis) {
+		this.discoveryPollMillis = discoveryPollMillis;
+	}
+
+	private List<String> modulePrefetchServiceIds = new ArrayList<>();
+
+	public List<String> getModulePrefetchServiceIds() {
+		return modulePrefetchServiceIds;
+	}
+
+	public void setModulePrefetchServiceIds(List<String> modulePrefetchServiceIds) {
+		this.modulePrefetchServiceIds = modulePrefetchServiceIds;
+	}
 }
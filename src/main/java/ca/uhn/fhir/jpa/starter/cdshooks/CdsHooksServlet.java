@@ -6,10 +6,9 @@ import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
-import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParser;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -20,9 +19,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpHeaders;
 
 import java.io.IOException;
-import java.util.stream.Collectors;
 
 import static org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig.CDS_HOOKS_OBJECT_MAPPER_FACTORY;
 
@@ -37,6 +36,12 @@ public class CdsHooksServlet extends HttpServlet {
 	@Autowired
 	private ProviderConfiguration providerConfiguration;
 
+	@Autowired
+	private CdsHooksProperties cdsHooksProperties;
+
+	@Autowired
+	private CdsDiscoveryDocumentCache discoveryDocumentCache;
+
 	@Autowired
 	ICdsServiceRegistry cdsServiceRegistry;
 
@@ -71,11 +76,16 @@ public class CdsHooksServlet extends HttpServlet {
 		}
 		ErrorHandling.setAccessControlHeaders(response, appProperties);
 		response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
-		response.getWriter()
-				.println(new GsonBuilder()
-						.setPrettyPrinting()
-						.create()
-						.toJson(JsonParser.parseString(objectMapper.writeValueAsString(getServices()))));
+
+		CdsDiscoveryDocumentCache.Document document = discoveryDocumentCache.getDocument();
+		response.setHeader(HttpHeaders.ETAG, document.getEtag());
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, document.getLastModified());
+		if (isNotModified(request, document)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setContentLength(document.getLength());
+		document.writeTo(response.getOutputStream());
 	}
 
 	@Override
@@ -89,21 +99,17 @@ public class CdsHooksServlet extends HttpServlet {
 			logger.info(request.getRequestURI());
 			String service = request.getPathInfo().replace("/", "");
 
-			String requestJson = request.getReader().lines().collect(Collectors.joining());
-			CdsHooksRequest cdsHooksRequest = objectMapper.readValue(requestJson, CdsHooksRequest.class);
-			logRequestInfo(cdsHooksRequest, requestJson);
+			CdsHooksRequest cdsHooksRequest =
+					objectMapper.readValue(request.getInputStream(), CdsHooksRequest.class);
+			logRequestInfo(cdsHooksRequest);
 
 			CdsServiceResponseJson serviceResponseJson = cdsServiceRegistry.callService(service, cdsHooksRequest);
 
-			// Using GSON pretty print format as Jackson's is ugly
-			String jsonResponse = new GsonBuilder()
-					.disableHtmlEscaping()
-					.setPrettyPrinting()
-					.create()
-					.toJson(JsonParser.parseString(objectMapper.writeValueAsString(serviceResponseJson)));
-			logger.info(jsonResponse);
+			if (logger.isDebugEnabled()) {
+				logger.debug(objectMapper.writeValueAsString(serviceResponseJson));
+			}
 			response.setContentType("text/json;charset=UTF-8");
-			response.getWriter().println(jsonResponse);
+			writeJson(response, serviceResponseJson);
 		} catch (BaseServerResponseException e) {
 			ErrorHandling.handleError(response, "ERROR: Exception connecting to remote server.", e, appProperties);
 			logger.error(e.toString());
@@ -113,8 +119,35 @@ public class CdsHooksServlet extends HttpServlet {
 		}
 	}
 
-	private void logRequestInfo(CdsServiceRequestJson request, String jsonRequest) {
-		logger.info(jsonRequest);
+	private static boolean isNotModified(HttpServletRequest request, CdsDiscoveryDocumentCache.Document document) {
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			return "*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(document.getEtag());
+		}
+		try {
+			return request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE) >= document.getLastModified();
+		} catch (IllegalArgumentException e) {
+			// Unparseable If-Modified-Since is ignored
+			return false;
+		}
+	}
+
+	/**
+	 * Serializes straight to the response stream in a single pass, without an intermediate string.
+	 */
+	private void writeJson(HttpServletResponse response, Object value) throws IOException {
+		ObjectWriter writer = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		if (cdsHooksProperties.isPrettyPrint()) {
+			writer = writer.withDefaultPrettyPrinter();
+		}
+		writer.writeValue(response.getOutputStream(), value);
+	}
+
+	private void logRequestInfo(CdsServiceRequestJson request) throws IOException {
+		// Full bodies contain the prefetched patient data, only logged when debugging
+		if (logger.isDebugEnabled()) {
+			logger.debug(objectMapper.writeValueAsString(request));
+		}
 		logger.info("cds-hooks hook instance: {}", request.getHookInstance());
 		logger.info("cds-hooks local server address: {}", appProperties.getServer_address());
 		logger.info("cds-hooks fhir server address: {}", request.getFhirServer());
@@ -122,8 +155,4 @@ public class CdsHooksServlet extends HttpServlet {
 				"cds-hooks cql_logging_enabled: {}",
 				this.getProviderConfiguration().getCqlLoggingEnabled());
 	}
-
-	private CdsServicesJson getServices() {
-		return cdsServiceRegistry.getCdsServicesJson();
-	}
 }
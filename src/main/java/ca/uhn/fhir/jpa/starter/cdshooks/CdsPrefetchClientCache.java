@@ -0,0 +1,86 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FHIR clients for CDS Hooks prefetch, one per FHIR server base URL, all sharing a single Apache HttpClient connection
+ * pool so that connections to the same EHR are kept alive and reused between hook calls.
+ * <p>
+ * Clients do not carry credentials - the bearer token of a hook request is added to each of its requests - and never
+ * fetch the server's CapabilityStatement. Pool usage is published to Micrometer as {@code httpcomponents.httpclient.pool.*}
+ * with tag {@code httpclient=cds-prefetch}.
+ */
+public class CdsPrefetchClientCache {
+	private static final Logger logger = LoggerFactory.getLogger(CdsPrefetchClientCache.class);
+	private static final String POOL_NAME = "cds-prefetch";
+	private static final int MAX_CLIENTS = 256;
+
+	private final ApacheRestfulClientFactory clientFactory;
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	// fhirServer comes from the hook request, so the number of clients is bounded
+	private final Cache<String, IGenericClient> clients =
+			Caffeine.newBuilder().maximumSize(MAX_CLIENTS).build();
+
+	public CdsPrefetchClientCache(
+			FhirContext theFhirContext,
+			CdsHooksProperties theCdsHooksProperties,
+			ObjectProvider<MeterRegistry> theMeterRegistry) {
+		connectionManager = new PoolingHttpClientConnectionManager(5, TimeUnit.MINUTES);
+		connectionManager.setMaxTotal(theCdsHooksProperties.getPrefetchMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(theCdsHooksProperties.getPrefetchMaxConnectionsPerRoute());
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(theCdsHooksProperties.getPrefetchConnectTimeoutMillis())
+				.setConnectionRequestTimeout(theCdsHooksProperties.getPrefetchConnectTimeoutMillis())
+				.setSocketTimeout(theCdsHooksProperties.getPrefetchSocketTimeoutMillis())
+				.build();
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.evictIdleConnections(30, TimeUnit.SECONDS)
+				.disableCookieManagement()
+				.build();
+
+		// Own factory, so that the server's FhirContext client settings are left alone
+		clientFactory = new ApacheRestfulClientFactory(theFhirContext);
+		clientFactory.setHttpClient(httpClient);
+		clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		theMeterRegistry.ifAvailable(registry ->
+				new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, POOL_NAME).bindTo(registry));
+	}
+
+	public IGenericClient getClient(String theFhirServerBase) {
+		return clients.get(StringUtils.removeEnd(theFhirServerBase, "/"), clientFactory::newGenericClient);
+	}
+
+	public void close() {
+		clients.invalidateAll();
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close cds-hooks prefetch HTTP client: {}", e.getMessage());
+		}
+	}
+}
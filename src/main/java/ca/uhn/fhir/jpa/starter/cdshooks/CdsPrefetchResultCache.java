@@ -0,0 +1,145 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.util.FhirTerser;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Short-lived prefetch results per patient, so that bursts of hooks fired for the same patient (patient-view,
+ * order-select, ...) reuse the bundles fetched by the first one.
+ * <p>
+ * Results are grouped by patient and a patient's results expire together, at most {@code prefetchCacheTtlSeconds}
+ * after the first of them was stored. Within a patient they are keyed by FHIR server, authorization and the resolved
+ * prefetch url, which contains the template and, through {@code {{today}}}, the day.
+ * <p>
+ * Writes to this server of a resource in a patient's compartment drop that patient's results, both when the write is
+ * about to commit and again once it has committed. A Medication is not in a patient's compartment but is included
+ * with the MedicationRequests, so writing one drops the results of all patients. Writes to remote FHIR servers are
+ * not seen and only the TTL applies to their results.
+ * <p>
+ * Results are kept serialized and every {@link PatientResults#get(String) get} parses a new instance, so requests
+ * and services never share (and modify) the same resources.
+ */
+@Interceptor
+public class CdsPrefetchResultCache {
+	private static final Set<String> PREFETCHED_TYPES = Set.of(
+			"Patient", "MedicationRequest", "Medication", "Condition", "Encounter", "ServiceRequest", "Observation");
+
+	private final FhirContext fhirContext;
+	private final FhirTerser terser;
+	private final Cache<String, PatientResults> patients;
+
+	public CdsPrefetchResultCache(FhirContext theFhirContext, CdsHooksProperties theCdsHooksProperties) {
+		fhirContext = theFhirContext;
+		terser = theFhirContext.newTerser();
+		patients = Caffeine.newBuilder()
+				.expireAfterWrite(theCdsHooksProperties.getPrefetchCacheTtlSeconds(), TimeUnit.SECONDS)
+				.maximumSize(theCdsHooksProperties.getPrefetchCacheMaxPatients())
+				.build();
+	}
+
+	/**
+	 * Results of one patient. Taken once before the queries run and filled afterwards, so that results of queries
+	 * started before an invalidation end up in the dropped instance and are never served.
+	 */
+	public PatientResults forPatient(String thePatientId) {
+		return patients.get(normalizePatientId(thePatientId), id -> new PatientResults(fhirContext));
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		invalidateCompartmentOwners(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		invalidateCompartmentOwners(theOldResource);
+		invalidateCompartmentOwners(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		invalidateCompartmentOwners(theResource);
+	}
+
+	private void invalidateCompartmentOwners(IBaseResource theResource) {
+		if (theResource == null || !PREFETCHED_TYPES.contains(theResource.fhirType())) {
+			return;
+		}
+		if ("Medication".equals(theResource.fhirType())) {
+			// Referenced from MedicationRequests of any number of patients
+			patients.invalidateAll();
+			afterCommit(patients::invalidateAll);
+			return;
+		}
+		Set<String> patientIds;
+		if ("Patient".equals(theResource.fhirType())) {
+			patientIds = theResource.getIdElement().hasIdPart()
+					? Set.of(theResource.getIdElement().getIdPart())
+					: Set.of();
+		} else {
+			patientIds = terser.getCompartmentOwnersForResource("Patient", theResource).stream()
+					.map(IIdType::getIdPart)
+					.filter(Objects::nonNull)
+					.collect(Collectors.toSet());
+		}
+		if (patientIds.isEmpty()) {
+			return;
+		}
+		patients.invalidateAll(patientIds);
+		afterCommit(() -> patients.invalidateAll(patientIds));
+	}
+
+	private static void afterCommit(Runnable theInvalidation) {
+		// A hook running concurrently may still read the old version until the transaction commits
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					theInvalidation.run();
+				}
+			});
+		}
+	}
+
+	private static String normalizePatientId(String thePatientId) {
+		return StringUtils.removeStart(thePatientId, "Patient/");
+	}
+
+	public static class PatientResults {
+		private final FhirContext fhirContext;
+		private final Map<String, String> results = new ConcurrentHashMap<>();
+
+		private PatientResults(FhirContext theFhirContext) {
+			fhirContext = theFhirContext;
+		}
+
+		/**
+		 * @return a new copy of the stored result, or null
+		 */
+		public IBaseResource get(String theKey) {
+			String encoded = results.get(theKey);
+			return encoded != null ? fhirContext.newJsonParser().parseResource(encoded) : null;
+		}
+
+		public void put(String theKey, IBaseResource theResource) {
+			results.put(theKey, fhirContext.newJsonParser().encodeResourceToString(theResource));
+		}
+	}
+}
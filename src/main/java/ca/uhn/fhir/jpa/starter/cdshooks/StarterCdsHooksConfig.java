@@ -1,11 +1,22 @@
 package ca.uhn.fhir.jpa.starter.cdshooks;
 
 import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.cr.CrCommonConfig;
 import ca.uhn.fhir.jpa.starter.cr.CrConfigCondition;
 import ca.uhn.fhir.jpa.starter.cr.CrProperties;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.svc.CdsHooksContextBooter;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.fhir.cr.hapi.cdshooks.CdsCrServiceRegistry;
 import org.opencds.cqf.fhir.cr.hapi.cdshooks.CdsCrSettings;
@@ -15,12 +26,17 @@ import org.opencds.cqf.fhir.cr.hapi.cdshooks.discovery.ICdsCrDiscoveryServiceReg
 import org.opencds.cqf.fhir.cr.hapi.config.CrCdsHooksConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.RepositoryConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
+
+import static org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig.CDS_HOOKS_OBJECT_MAPPER_FACTORY;
 
 @Configuration
 @Conditional({CdsHooksConfigCondition.class, CrConfigCondition.class})
@@ -76,6 +92,50 @@ public class StarterCdsHooksConfig {
 		return new CdsHooksDaoAuthorizationSvc();
 	}
 
+	// Replaces the prefetch service of CdsHooksConfig, which is still created but no longer injected. Services not
+	// listed in modulePrefetchServiceIds keep its template-driven prefetch
+	@Bean
+	@Primary
+	public CdsPrefetchSvc moduleConfigurationPrefetchSvc(
+			CdsResolutionStrategySvc theCdsResolutionStrategySvc,
+			CdsPrefetchDaoSvc theResourcePrefetchDao,
+			CdsPrefetchFhirClientSvc theResourcePrefetchFhirClient,
+			ICdsHooksDaoAuthorizationSvc theCdsHooksDaoAuthorizationSvc,
+			IInterceptorService theInterceptorService,
+			CdsHooksProperties theCdsHooksProperties,
+			AppProperties theAppProperties,
+			ObjectProvider<MeterRegistry> theMeterRegistry) {
+		return new ModuleConfigurationPrefetchSvc(
+				theCdsResolutionStrategySvc,
+				theResourcePrefetchDao,
+				theResourcePrefetchFhirClient,
+				theCdsHooksDaoAuthorizationSvc,
+				theInterceptorService,
+				theCdsHooksProperties,
+				theAppProperties,
+				theMeterRegistry);
+	}
+
+	@Bean
+	public CdsDiscoveryDocumentCache cdsDiscoveryDocumentCache(
+			ICdsServiceRegistry theCdsServiceRegistry,
+			@Qualifier(CDS_HOOKS_OBJECT_MAPPER_FACTORY) ObjectMapper theObjectMapper,
+			CdsHooksProperties theCdsHooksProperties,
+			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
+			IInterceptorService theInterceptorService) {
+		CdsDiscoveryDocumentCache cache =
+				new CdsDiscoveryDocumentCache(theCdsServiceRegistry, theObjectMapper, theCdsHooksProperties);
+		// CR services are created from PlanDefinitions: writes on this node are seen by the storage hooks,
+		// the poll only catches the writes of other nodes
+		theInterceptorService.registerInterceptor(cache);
+		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"PlanDefinition",
+				SearchParameterMap.newSynchronous(),
+				cache,
+				theCdsHooksProperties.getDiscoveryPollMillis());
+		return cache;
+	}
+
 	@Bean
 	public ServletRegistrationBean<CdsHooksServlet> cdsHooksRegistrationBean(AutowireCapableBeanFactory beanFactory) {
 		CdsHooksServlet cdsHooksServlet = new CdsHooksServlet();
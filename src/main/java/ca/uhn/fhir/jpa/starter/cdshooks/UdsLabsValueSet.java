@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.ClasspathUtil;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The laboratory codes prefetched for UDS measures, maintained in one place as a pre-expanded ValueSet
+ * ({@value #RESOURCE}) and loaded once into a set of {@code system|code}.
+ * <p>
+ * Searches against this server leave the codes out of the query and keep the results whose code is in the set, so
+ * neither a list of more than a thousand tokens nor a ValueSet expansion (limited by {@code maximum_expansion_size})
+ * is needed on every hook call. Remote servers get the codes as a {@code code=system|code,...} list. Both match the
+ * same system and code.
+ */
+public class UdsLabsValueSet {
+	public static final String RESOURCE = "uds-labs-valueset.json";
+
+	private final FhirContext fhirContext;
+	private final Set<String> codes;
+	private final String codeTokens;
+
+	public UdsLabsValueSet(FhirContext theFhirContext) {
+		fhirContext = theFhirContext;
+		IBaseResource valueSet =
+				theFhirContext.newJsonParser().parseResource(ClasspathUtil.loadResource("/" + RESOURCE));
+		FhirTerser terser = theFhirContext.newTerser();
+		codes = new LinkedHashSet<>();
+		for (IBase contains : terser.getValues(valueSet, "ValueSet.expansion.contains")) {
+			codes.add(terser.getSinglePrimitiveValueOrNull(contains, "system") + "|"
+					+ terser.getSinglePrimitiveValueOrNull(contains, "code"));
+		}
+		codeTokens = String.join(",", codes);
+	}
+
+	/**
+	 * @return the expanded codes as comma separated {@code system|code} tokens, for a {@code code=} search parameter
+	 */
+	public String getCodes() {
+		return codeTokens;
+	}
+
+	/**
+	 * @return whether one of the codings of the resource's {@code code} is in the ValueSet
+	 */
+	public boolean matches(IBaseResource theResource) {
+		FhirTerser terser = fhirContext.newTerser();
+		String path = fhirContext.getResourceType(theResource) + ".code.coding";
+		for (IBase coding : terser.getValues(theResource, path)) {
+			String system = terser.getSinglePrimitiveValueOrNull(coding, "system");
+			String code = terser.getSinglePrimitiveValueOrNull(coding, "code");
+			if (codes.contains(system + "|" + code)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a searchset Bundle with the resources of the given Bundle that {@link #matches(IBaseResource) match}
+	 */
+	public IBaseBundle filter(IBaseBundle theBundle) {
+		BundleBuilder builder = new BundleBuilder(fhirContext);
+		builder.setType("searchset");
+		BundleUtil.toListOfResources(fhirContext, theBundle).stream()
+				.filter(this::matches)
+				.forEach(builder::addCollectionEntry);
+		return builder.getBundle();
+	}
+}
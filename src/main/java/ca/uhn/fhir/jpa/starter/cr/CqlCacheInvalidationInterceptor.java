@@ -0,0 +1,142 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.util.FhirTerser;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Drops compiled libraries and ValueSet expansions from the global CQL caches as soon as a Library or ValueSet is
+ * written, instead of waiting for the resource change listeners to re-scan all of them.
+ * <p>
+ * Entries are removed when the write is about to commit and again after it committed, so that an evaluation running
+ * concurrently cannot put the old version back. With a {@link PostgresCacheInvalidationChannel} the same
+ * invalidation is sent to the other nodes; the notification is part of the write transaction and is only delivered
+ * if it commits.
+ */
+@Interceptor
+public class CqlCacheInvalidationInterceptor {
+	private static final Logger ourLog = LoggerFactory.getLogger(CqlCacheInvalidationInterceptor.class);
+
+	// Notification payloads: Library|<name>|<version> and ValueSet|<url>
+	private static final String LIBRARY = "Library";
+	private static final String VALUE_SET = "ValueSet";
+	private static final String SEPARATOR = "|";
+
+	private final FhirTerser myTerser;
+	private final Map<VersionedIdentifier, CompiledLibrary> myLibraryCache;
+	private final Map<String, List<Code>> myValueSetCache;
+	private final PostgresCacheInvalidationChannel myChannel;
+
+	/**
+	 * @param theChannel cross-node channel, or null on a single node / non-PostgreSQL database
+	 */
+	public CqlCacheInvalidationInterceptor(
+			FhirContext theFhirContext,
+			Map<VersionedIdentifier, CompiledLibrary> theLibraryCache,
+			Map<String, List<Code>> theValueSetCache,
+			PostgresCacheInvalidationChannel theChannel) {
+		myTerser = theFhirContext.newTerser();
+		myLibraryCache = theLibraryCache;
+		myValueSetCache = theValueSetCache;
+		myChannel = theChannel;
+		if (myChannel != null) {
+			myChannel.listen(this::invalidate, this::invalidateAll);
+		}
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		// The name, version or url may have changed, both the old and the new entries go
+		resourceChanged(theOldResource);
+		resourceChanged(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	private void resourceChanged(IBaseResource theResource) {
+		String payload = toPayload(theResource);
+		if (payload == null) {
+			return;
+		}
+		invalidate(payload);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					invalidate(payload);
+				}
+			});
+		}
+		if (myChannel != null) {
+			myChannel.notify(payload);
+		}
+	}
+
+	private String toPayload(IBaseResource theResource) {
+		if (theResource == null) {
+			return null;
+		}
+		if (LIBRARY.equals(theResource.fhirType())) {
+			String name = myTerser.getSinglePrimitiveValueOrNull(theResource, "Library.name");
+			String version = myTerser.getSinglePrimitiveValueOrNull(theResource, "Library.version");
+			return name != null ? LIBRARY + SEPARATOR + name + SEPARATOR + Objects.toString(version, "") : null;
+		}
+		if (VALUE_SET.equals(theResource.fhirType())) {
+			String url = myTerser.getSinglePrimitiveValueOrNull(theResource, "ValueSet.url");
+			return url != null ? VALUE_SET + SEPARATOR + url : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Applies an invalidation of this or another node.
+	 */
+	public void invalidate(String thePayload) {
+		String[] parts = thePayload.split("\\|", 3);
+		if (LIBRARY.equals(parts[0]) && parts.length == 3) {
+			String name = parts[1];
+			String version = parts[2].isEmpty() ? null : parts[2];
+			// Also versionless entries, which may have resolved to this library
+			myLibraryCache.keySet().removeIf(id -> name.equals(id.getId())
+					&& (version == null || id.getVersion() == null || version.equals(id.getVersion())));
+		} else if (VALUE_SET.equals(parts[0]) && parts.length >= 2) {
+			String url = thePayload.substring(VALUE_SET.length() + SEPARATOR.length());
+			myValueSetCache.keySet().removeIf(key -> key.equals(url) || key.startsWith(url + SEPARATOR));
+		} else {
+			ourLog.debug("Ignoring cache invalidation {}", thePayload);
+		}
+	}
+
+	private void invalidateAll() {
+		myLibraryCache.clear();
+		myValueSetCache.clear();
+	}
+
+	public void close() {
+		if (myChannel != null) {
+			myChannel.close();
+		}
+	}
+}
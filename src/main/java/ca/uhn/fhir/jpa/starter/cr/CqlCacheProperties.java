@@ -0,0 +1,65 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CqlCacheProperties {
+
+	// Compiled libraries, weighed by the number of ELM statement definitions
+	private Long library_max_weight = 100_000L;
+	private Long model_max_size = 100L;
+	// ValueSet expansions, weighed by the number of codes
+	private Long valueset_max_weight = 5_000_000L;
+	// Expansions held by soft references, so that the GC can reclaim them under memory pressure
+	private Boolean valueset_soft_values = true;
+	// Library/ValueSet writes invalidate the caches directly; the full re-scan only catches what was missed
+	private Long invalidation_poll_millis = 300_000L;
+	// Send invalidations to the other nodes through PostgreSQL NOTIFY (ignored on other databases), each node listens
+	// on one connection of its own besides the pool
+	private Boolean invalidation_broadcast_enabled = true;
+
+	public Long getLibrary_max_weight() {
+		return library_max_weight;
+	}
+
+	public void setLibrary_max_weight(Long library_max_weight) {
+		this.library_max_weight = library_max_weight;
+	}
+
+	public Long getModel_max_size() {
+		return model_max_size;
+	}
+
+	public void setModel_max_size(Long model_max_size) {
+		this.model_max_size = model_max_size;
+	}
+
+	public Long getValueset_max_weight() {
+		return valueset_max_weight;
+	}
+
+	public void setValueset_max_weight(Long valueset_max_weight) {
+		this.valueset_max_weight = valueset_max_weight;
+	}
+
+	public Boolean getValueset_soft_values() {
+		return valueset_soft_values;
+	}
+
+	public void setValueset_soft_values(Boolean valueset_soft_values) {
+		this.valueset_soft_values = valueset_soft_values;
+	}
+
+	public Long getInvalidation_poll_millis() {
+		return invalidation_poll_millis;
+	}
+
+	public void setInvalidation_poll_millis(Long invalidation_poll_millis) {
+		this.invalidation_poll_millis = invalidation_poll_millis;
+	}
+
+	public Boolean getInvalidation_broadcast_enabled() {
+		return invalidation_broadcast_enabled;
+	}
+
+	public void setInvalidation_broadcast_enabled(Boolean invalidation_broadcast_enabled) {
+		this.invalidation_broadcast_enabled = invalidation_broadcast_enabled;
+	}
+}
@@ -0,0 +1,397 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.cqframework.cql.cql2elm.CqlCompilerException;
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.cql2elm.quick.FhirLibrarySourceProvider;
+import org.cqframework.cql.elm.serializing.jackson.ElmJsonLibraryWriter;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the CQL of every stored Library into the global library cache at startup, so that the first
+ * {@code $evaluate-measure} after a deploy does not pay for CQL-to-ELM translation.
+ * <p>
+ * Libraries are compiled in parallel on the CQL executor, each with its own {@link LibraryManager} over the shared
+ * library and model caches and the same compiler options as evaluation. With {@code elm_cache_dir} set, the compiled
+ * ELM is also written as JSON keyed by library name, version and a hash of the CQL, the compiler options and the CQL of
+ * every library it includes, transitively, and read back instead of compiling on the next start.
+ * <p>
+ * Runs as an {@link ApplicationRunner}: Spring Boot reports the application ready (readiness probe) only after the
+ * runners return, so readiness waits for the warm-up, for at most {@code time_budget_seconds}.
+ */
+public class CqlLibraryWarmup implements ApplicationRunner {
+	private static final Logger ourLog = LoggerFactory.getLogger(CqlLibraryWarmup.class);
+	private static final int PAGE_SIZE = 500;
+	private static final String CQL_CONTENT_TYPE = "text/cql";
+	private static final String IDENTIFIER = "(?:[A-Za-z_][A-Za-z0-9_]*|\"[^\"]+\"|`[^`]+`)";
+	private static final Pattern INCLUDE = Pattern.compile(
+			"^\\s*include\\s+(" + IDENTIFIER + "(?:\\." + IDENTIFIER + ")*)(?:\\s+version\\s+'([^']*)')?",
+			Pattern.MULTILINE);
+
+	private final DaoRegistry myDaoRegistry;
+	private final FhirContext myFhirContext;
+	private final EvaluationSettings myEvaluationSettings;
+	private final ExecutorService myExecutor;
+	private final CqlWarmupProperties myWarmupProperties;
+	private final boolean myUseEmbeddedLibraries;
+
+	public CqlLibraryWarmup(
+			DaoRegistry theDaoRegistry,
+			FhirContext theFhirContext,
+			EvaluationSettings theEvaluationSettings,
+			ExecutorService theExecutor,
+			CqlProperties theCqlProperties) {
+		myDaoRegistry = theDaoRegistry;
+		myFhirContext = theFhirContext;
+		myEvaluationSettings = theEvaluationSettings;
+		myExecutor = theExecutor;
+		myWarmupProperties = theCqlProperties.getWarmup();
+		myUseEmbeddedLibraries = theCqlProperties.getUse_embedded_libraries();
+	}
+
+	@Override
+	public void run(ApplicationArguments theArgs) {
+		if (!myWarmupProperties.getEnabled()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(myWarmupProperties.getTime_budget_seconds());
+
+		List<CqlSource> sources = withIncludeHashes(loadCqlSources());
+		Path elmCacheDir = getElmCacheDir();
+		SourceProvider sourceProvider = new SourceProvider(sources, elmCacheDir);
+
+		AtomicInteger compiled = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>(sources.size());
+		for (CqlSource source : sources) {
+			futures.add(myExecutor.submit(() -> {
+				if (compile(source, sourceProvider, elmCacheDir)) {
+					compiled.incrementAndGet();
+				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+			ourLog.info(
+					"Compiled {} of {} CQL libraries in {} ms",
+					compiled.get(),
+					sources.size(),
+					System.currentTimeMillis() - start);
+		} catch (TimeoutException e) {
+			ourLog.warn(
+					"CQL warm-up did not finish within {} s ({} of {} libraries compiled), continuing in the background",
+					myWarmupProperties.getTime_budget_seconds(),
+					compiled.get(),
+					sources.size());
+		} catch (ExecutionException e) {
+			ourLog.warn("CQL warm-up failed: {}", e.getCause().toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean compile(CqlSource theSource, SourceProvider theSourceProvider, Path theElmCacheDir) {
+		try {
+			ModelManager modelManager = new ModelManager(myEvaluationSettings.getModelCache());
+			LibraryManager libraryManager = new LibraryManager(
+					modelManager,
+					myEvaluationSettings.getCqlOptions().getCqlCompilerOptions(),
+					myEvaluationSettings.getLibraryCache());
+			if (myUseEmbeddedLibraries) {
+				libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+			}
+			libraryManager.getLibrarySourceLoader().registerProvider(theSourceProvider);
+
+			List<CqlCompilerException> errors = new ArrayList<>();
+			CompiledLibrary library = libraryManager.resolveLibrary(theSource.identifier(), errors);
+			for (CqlCompilerException error : errors) {
+				if (error.getSeverity() == CqlCompilerException.ErrorSeverity.Error) {
+					ourLog.warn("Library {} does not compile: {}", theSource, error.getMessage());
+					return false;
+				}
+			}
+			if (theElmCacheDir != null && library != null) {
+				writeElm(theElmCacheDir.resolve(theSource.elmFileName()), library);
+			}
+			return library != null;
+		} catch (Exception e) {
+			ourLog.warn("Failed to compile library {}: {}", theSource, e.toString());
+			return false;
+		}
+	}
+
+	private static void writeElm(Path theFile, CompiledLibrary theLibrary) throws IOException {
+		if (Files.exists(theFile)) {
+			return;
+		}
+		// Written next to the target and moved, so that a concurrent or interrupted start never reads half a file
+		Path tmp = Files.createTempFile(theFile.getParent(), theFile.getFileName().toString(), ".tmp");
+		try {
+			Files.writeString(tmp, new ElmJsonLibraryWriter().writeAsString(theLibrary.getLibrary()));
+			Files.move(tmp, theFile, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private Path getElmCacheDir() {
+		if (StringUtils.isBlank(myWarmupProperties.getElm_cache_dir())) {
+			return null;
+		}
+		Path dir = Paths.get(myWarmupProperties.getElm_cache_dir());
+		try {
+			Files.createDirectories(dir);
+			return dir;
+		} catch (IOException e) {
+			ourLog.warn("ELM cache directory {} is not usable, compiling without it: {}", dir, e.toString());
+			return null;
+		}
+	}
+
+	private List<CqlSource> loadCqlSources() {
+		IFhirResourceDao<IBaseResource> libraryDao = myDaoRegistry.getResourceDao("Library");
+		IBundleProvider libraries = libraryDao.search(new SearchParameterMap(), new SystemRequestDetails());
+		FhirTerser terser = myFhirContext.newTerser();
+		// ELM compiled with other options is not reused
+		String optionsKey = compilerOptionsKey(myEvaluationSettings.getCqlOptions().getCqlCompilerOptions());
+		List<CqlSource> sources = new ArrayList<>();
+		for (int from = 0; ; from += PAGE_SIZE) {
+			List<IBaseResource> page = libraries.getResources(from, from + PAGE_SIZE);
+			if (page.isEmpty()) {
+				return sources;
+			}
+			for (IBaseResource library : page) {
+				String name = terser.getSinglePrimitiveValueOrNull(library, "Library.name");
+				String cql = getCql(terser, library);
+				if (name != null && cql != null) {
+					String version = terser.getSinglePrimitiveValueOrNull(library, "Library.version");
+					sources.add(new CqlSource(
+							new VersionedIdentifier().withId(name).withVersion(version),
+							cql,
+							DigestUtils.sha256Hex(optionsKey + "\n" + cql)));
+				}
+			}
+		}
+	}
+
+	// ELM is only valid against the includes it was compiled with, so its key covers the libraries its includes
+	// resolve to now - a changed included library, or a new version of one included without a version, is recompiled
+	private List<CqlSource> withIncludeHashes(List<CqlSource> theSources) {
+		Map<CqlSource, String> hashes = new HashMap<>();
+		return theSources.stream()
+				.map(source -> source.withHash(includeHash(source, theSources, hashes, new HashSet<>())))
+				.toList();
+	}
+
+	private String includeHash(
+			CqlSource theSource, List<CqlSource> theSources, Map<CqlSource, String> theHashes, Set<CqlSource> theVisiting) {
+		String hash = theHashes.get(theSource);
+		if (hash != null) {
+			return hash;
+		}
+		if (!theVisiting.add(theSource)) {
+			// A cyclic include does not compile anyway
+			return theSource.hash();
+		}
+		StringBuilder key = new StringBuilder(theSource.hash());
+		for (VersionedIdentifier include : theSource.includes()) {
+			key.append('\n').append(include.getId()).append('|').append(include.getVersion()).append('=');
+			// Resolved in the order of the source providers in compile()
+			String embedded = myUseEmbeddedLibraries ? embeddedCqlHash(include) : null;
+			CqlSource stored = embedded == null ? find(theSources, include) : null;
+			if (embedded != null) {
+				key.append(embedded);
+			} else if (stored != null) {
+				key.append(includeHash(stored, theSources, theHashes, theVisiting));
+			}
+		}
+		theVisiting.remove(theSource);
+		hash = DigestUtils.sha256Hex(key.toString());
+		theHashes.put(theSource, hash);
+		return hash;
+	}
+
+	private static String embeddedCqlHash(VersionedIdentifier theIdentifier) {
+		try (InputStream cql = new FhirLibrarySourceProvider().getLibrarySource(theIdentifier)) {
+			return cql != null ? DigestUtils.sha256Hex(cql) : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// A versionless include resolves to the highest stored version
+	private static CqlSource find(List<CqlSource> theSources, VersionedIdentifier theIdentifier) {
+		return theSources.stream()
+				.filter(source -> source.matches(theIdentifier))
+				.max(CqlSource::compareVersions)
+				.orElse(null);
+	}
+
+	private static String compilerOptionsKey(CqlCompilerOptions theOptions) {
+		return String.join(
+				"|",
+				String.valueOf(theOptions.getOptions()),
+				String.valueOf(theOptions.getVerifyOnly()),
+				String.valueOf(theOptions.getValidateUnits()),
+				String.valueOf(theOptions.getErrorLevel()),
+				String.valueOf(theOptions.getSignatureLevel()),
+				String.valueOf(theOptions.getCompatibilityLevel()),
+				String.valueOf(theOptions.getAnalyzeDataRequirements()),
+				String.valueOf(theOptions.getCollapseDataRequirements()));
+	}
+
+	private static String getCql(FhirTerser theTerser, IBaseResource theLibrary) {
+		for (IBase content : theTerser.getValues(theLibrary, "Library.content")) {
+			if (CQL_CONTENT_TYPE.equals(theTerser.getSinglePrimitiveValueOrNull(content, "contentType"))) {
+				IPrimitiveType<?> data = theTerser
+						.getSingleValue(content, "data", IPrimitiveType.class)
+						.orElse(null);
+				if (data != null && data.getValue() instanceof byte[] bytes) {
+					return new String(bytes, StandardCharsets.UTF_8);
+				}
+			}
+		}
+		return null;
+	}
+
+	private record CqlSource(VersionedIdentifier identifier, String cql, String hash) {
+		CqlSource withHash(String theHash) {
+			return new CqlSource(identifier, cql, theHash);
+		}
+
+		List<VersionedIdentifier> includes() {
+			List<VersionedIdentifier> includes = new ArrayList<>();
+			Matcher matcher = INCLUDE.matcher(cql);
+			while (matcher.find()) {
+				// The library name is the last part of a qualified identifier
+				String name = StringUtils.substringAfterLast("." + matcher.group(1), ".");
+				name = StringUtils.strip(name, "\"`");
+				includes.add(new VersionedIdentifier().withId(name).withVersion(matcher.group(2)));
+			}
+			return includes;
+		}
+
+		String elmFileName() {
+			String version = StringUtils.defaultString(identifier.getVersion());
+			return (identifier.getId() + "-" + version).replaceAll("[^A-Za-z0-9._-]", "_") + "-" + hash + ".json";
+		}
+
+		boolean matches(VersionedIdentifier theIdentifier) {
+			return identifier.getId().equals(theIdentifier.getId())
+					&& (theIdentifier.getVersion() == null
+							|| theIdentifier.getVersion().equals(identifier.getVersion()));
+		}
+
+		/**
+		 * Orders versions as the CQL library resolvers do: numerically by dot-separated part, unversioned first.
+		 */
+		static int compareVersions(CqlSource theLeft, CqlSource theRight) {
+			String left = theLeft.identifier.getVersion();
+			String right = theRight.identifier.getVersion();
+			if (left == null || right == null) {
+				return left == null ? (right == null ? 0 : -1) : 1;
+			}
+			String[] leftParts = left.split("\\.");
+			String[] rightParts = right.split("\\.");
+			for (int i = 0; i < Math.max(leftParts.length, rightParts.length); i++) {
+				String leftPart = i < leftParts.length ? leftParts[i] : "0";
+				String rightPart = i < rightParts.length ? rightParts[i] : "0";
+				int result = StringUtils.isNumeric(leftPart) && StringUtils.isNumeric(rightPart)
+						? new BigInteger(leftPart).compareTo(new BigInteger(rightPart))
+						: leftPart.compareTo(rightPart);
+				if (result != 0) {
+					return result;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return identifier.getId() + "|" + identifier.getVersion();
+		}
+	}
+
+	/**
+	 * CQL of the stored Libraries, and their ELM from the disk cache when it was written for the same CQL.
+	 */
+	private static class SourceProvider implements LibrarySourceProvider {
+		private final List<CqlSource> mySources;
+		private final Path myElmCacheDir;
+
+		private SourceProvider(List<CqlSource> theSources, Path theElmCacheDir) {
+			mySources = theSources;
+			myElmCacheDir = theElmCacheDir;
+		}
+
+		@Override
+		public InputStream getLibrarySource(VersionedIdentifier theIdentifier) {
+			CqlSource source = find(mySources, theIdentifier);
+			return source != null ? new ByteArrayInputStream(source.cql().getBytes(StandardCharsets.UTF_8)) : null;
+		}
+
+		@Override
+		public InputStream getLibraryContent(VersionedIdentifier theIdentifier, LibraryContentType theType) {
+			if (theType == LibraryContentType.CQL) {
+				return getLibrarySource(theIdentifier);
+			}
+			CqlSource source = find(mySources, theIdentifier);
+			if (theType != LibraryContentType.JSON || myElmCacheDir == null || source == null) {
+				return null;
+			}
+			Path elm = myElmCacheDir.resolve(source.elmFileName());
+			try {
+				return Files.exists(elm) ? Files.newInputStream(elm) : null;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -8,6 +8,8 @@ public class CqlProperties {
 	private Boolean use_embedded_libraries = true;
 	private CqlCompilerProperties compiler = new CqlCompilerProperties();
 	private CqlRuntimeProperties runtime = new CqlRuntimeProperties();
+	private CqlCacheProperties cache = new CqlCacheProperties();
+	private CqlWarmupProperties warmup = new CqlWarmupProperties();
 	private TerminologySettings terminology = new TerminologySettings();
 	private RetrieveSettings data = new RetrieveSettings();
 
@@ -35,6 +37,22 @@ public class CqlProperties {
 		this.runtime = runtime;
 	}
 
+	public CqlCacheProperties getCache() {
+		return cache;
+	}
+
+	public void setCache(CqlCacheProperties cache) {
+		this.cache = cache;
+	}
+
+	public CqlWarmupProperties getWarmup() {
+		return warmup;
+	}
+
+	public void setWarmup(CqlWarmupProperties warmup) {
+		this.warmup = warmup;
+	}
+
 	public TerminologySettings getTerminology() {
 		return terminology;
 	}
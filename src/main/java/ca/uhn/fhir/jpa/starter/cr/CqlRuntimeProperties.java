@@ -5,6 +5,15 @@ public class CqlRuntimeProperties {
 	private Boolean debug_logging_enabled = false;
 	private Boolean enable_validation = false;
 	private Boolean enable_expression_caching = true;
+	// cqlExecutor: 0 - by the number of processors
+	private Integer executor_threads = 0;
+	private Integer executor_queue_capacity = 1000;
+	// CALLER_RUNS (run on the calling thread when the queue is full) or ABORT (reject), anything else fails startup
+	private String executor_rejection_policy = "CALLER_RUNS";
+	// Virtual instead of platform threads (Java 21+). executor_threads still bounds the tasks running at once, and
+	// with it the fan-out of partitioned measure evaluation and the warm-up; it can be set well above the number
+	// of processors when evaluation mostly waits on the database
+	private Boolean executor_virtual_threads = false;
 
 	public boolean isDebugLoggingEnabled() {
 		return debug_logging_enabled;
@@ -29,4 +38,36 @@ public class CqlRuntimeProperties {
 	public void EnableValidation(boolean enable_validation) {
 		this.enable_validation = enable_validation;
 	}
+
+	public Integer getExecutor_threads() {
+		return executor_threads;
+	}
+
+	public void setExecutor_threads(Integer executor_threads) {
+		this.executor_threads = executor_threads;
+	}
+
+	public Integer getExecutor_queue_capacity() {
+		return executor_queue_capacity;
+	}
+
+	public void setExecutor_queue_capacity(Integer executor_queue_capacity) {
+		this.executor_queue_capacity = executor_queue_capacity;
+	}
+
+	public String getExecutor_rejection_policy() {
+		return executor_rejection_policy;
+	}
+
+	public void setExecutor_rejection_policy(String executor_rejection_policy) {
+		this.executor_rejection_policy = executor_rejection_policy;
+	}
+
+	public Boolean getExecutor_virtual_threads() {
+		return executor_virtual_threads;
+	}
+
+	public void setExecutor_virtual_threads(Boolean executor_virtual_threads) {
+		this.executor_virtual_threads = executor_virtual_threads;
+	}
 }
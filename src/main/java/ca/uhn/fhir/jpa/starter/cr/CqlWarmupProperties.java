@@ -0,0 +1,35 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CqlWarmupProperties {
+
+	// Compile all stored Libraries into the library cache at startup
+	private Boolean enabled = false;
+	// How long startup (and readiness) waits for the warm-up, the rest is compiled in the background
+	private Integer time_budget_seconds = 120;
+	// Directory for compiled ELM JSON reused by the next start, empty - no disk cache
+	private String elm_cache_dir = "";
+
+	public Boolean getEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(Boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public Integer getTime_budget_seconds() {
+		return time_budget_seconds;
+	}
+
+	public void setTime_budget_seconds(Integer time_budget_seconds) {
+		this.time_budget_seconds = time_budget_seconds;
+	}
+
+	public String getElm_cache_dir() {
+		return elm_cache_dir;
+	}
+
+	public void setElm_cache_dir(String elm_cache_dir) {
+		this.elm_cache_dir = elm_cache_dir;
+	}
+}
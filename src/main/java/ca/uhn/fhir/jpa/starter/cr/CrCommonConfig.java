@@ -1,11 +1,21 @@
 package ca.uhn.fhir.jpa.starter.cr;
 
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.cache.ResourceChangeListenerRegistryInterceptor;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import org.cqframework.cql.cql2elm.CqlCompilerOptions;
 import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.cqframework.cql.cql2elm.model.Model;
@@ -22,6 +32,10 @@ import org.opencds.cqf.fhir.cr.hapi.common.ElmCacheResourceChangeListener;
 import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.utility.ValidationProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
@@ -31,15 +45,21 @@ import org.springframework.security.concurrent.DelegatingSecurityContextExecutor
 
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
 
 @Configuration
 @Conditional({CrConfigCondition.class})
 public class CrCommonConfig {
+	private static final Logger ourLog = LoggerFactory.getLogger(CrCommonConfig.class);
 
 	@Bean
 	@ConfigurationProperties(prefix = "hapi.fhir.cr")
@@ -145,14 +165,76 @@ public class CrCommonConfig {
 
 	@Primary
 	@Bean
-	public ExecutorService cqlExecutor() {
-		CqlThreadFactory factory = new CqlThreadFactory();
-		ExecutorService executor = Executors.newFixedThreadPool(2, factory);
+	public ExecutorService cqlExecutor(CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		var runtimeProperties = theCrProperties.getCql().getRuntime();
+		RejectedExecutionHandler rejectionPolicy = switch (runtimeProperties
+				.getExecutor_rejection_policy()
+				.toUpperCase(Locale.ROOT)) {
+			case "CALLER_RUNS" -> new ThreadPoolExecutor.CallerRunsPolicy();
+			case "ABORT" -> new ThreadPoolExecutor.AbortPolicy();
+			default -> throw new ConfigurationException(
+					"hapi.fhir.cr.cql.runtime.executor_rejection_policy must be CALLER_RUNS or ABORT, not "
+							+ runtimeProperties.getExecutor_rejection_policy());
+		};
+		ThreadFactory threadFactory = null;
+		if (runtimeProperties.getExecutor_virtual_threads()) {
+			threadFactory = virtualThreadFactory();
+		}
+		if (threadFactory == null) {
+			threadFactory = new CqlThreadFactory();
+		}
+		// Virtual threads are pooled too, so that executor_threads still bounds the fan-out of partitioned measure
+		// evaluation and the warm-up, and the queue capacity and rejection policy apply
+		int threads = runtimeProperties.getExecutor_threads() > 0
+				? runtimeProperties.getExecutor_threads()
+				: Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = new ThreadPoolExecutor(
+				threads,
+				threads,
+				60,
+				TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(runtimeProperties.getExecutor_queue_capacity()),
+				threadFactory,
+				rejectionPolicy);
+		// executor.* meters (pool size, active, queued, task duration and time in queue) with tag name=cqlExecutor
+		MeterRegistry registry = theMeterRegistry.getIfAvailable();
+		if (registry != null) {
+			executor = ExecutorServiceMetrics.monitor(registry, executor, "cqlExecutor");
+		}
 		executor = new DelegatingSecurityContextExecutorService(executor);
 
 		return executor;
 	}
 
+	/**
+	 * Thread.ofVirtual().name("cql-virtual-", 0).factory() when running on Java 21+, the server is still built for
+	 * Java 17. Replaces CqlThreadFactory, which only creates platform threads.
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "cql-virtual-", 0L);
+			return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			ourLog.warn(
+					"Virtual threads are not available on Java {}, using platform threads for CQL evaluation",
+					Runtime.version().feature());
+			return null;
+		}
+	}
+
+	@Bean
+	public CqlLibraryWarmup cqlLibraryWarmup(
+			CrProperties theCrProperties,
+			DaoRegistry theDaoRegistry,
+			FhirContext theFhirContext,
+			EvaluationSettings theEvaluationSettings,
+			ExecutorService theCqlExecutor) {
+		return new CqlLibraryWarmup(
+				theDaoRegistry, theFhirContext, theEvaluationSettings, theCqlExecutor, theCrProperties.getCql());
+	}
+
 	@Bean
 	CareGapsProperties careGapsProperties(CrProperties theCrProperties) {
 		var careGapsProperties = new CareGapsProperties();
@@ -182,30 +264,83 @@ public class CrCommonConfig {
 		return new PostInitProviderRegisterer(theRestfulServer, theResourceProviderFactory);
 	}
 
+	// Bounded caches exposed as Map, as EvaluationSettings and the Elm/Code cache change listeners expect;
+	// removals by the listeners go through Caffeine's asMap() view
 	@Bean
-	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache() {
-		return new ConcurrentHashMap<>();
+	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		Cache<VersionedIdentifier, CompiledLibrary> cache = Caffeine.newBuilder()
+				.maximumWeight(theCrProperties.getCql().getCache().getLibrary_max_weight())
+				.weigher(CrCommonConfig::weighLibrary)
+				.recordStats()
+				.build();
+		monitor(theMeterRegistry, cache, "cql.libraries");
+		return cache.asMap();
 	}
 
 	@Bean
-	public Map<ModelIdentifier, Model> globalModelCache() {
-		return new ConcurrentHashMap<>();
+	public Map<ModelIdentifier, Model> globalModelCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		Cache<ModelIdentifier, Model> cache = Caffeine.newBuilder()
+				.maximumSize(theCrProperties.getCql().getCache().getModel_max_size())
+				.recordStats()
+				.build();
+		monitor(theMeterRegistry, cache, "cql.models");
+		return cache.asMap();
 	}
 
 	@Bean
-	public Map<String, List<Code>> globalValueSetCache() {
-		return new ConcurrentHashMap<>();
+	public Map<String, List<Code>> globalValueSetCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		CqlCacheProperties cacheProperties = theCrProperties.getCql().getCache();
+		Caffeine<String, List<Code>> builder = Caffeine.newBuilder()
+				.maximumWeight(cacheProperties.getValueset_max_weight())
+				.weigher((String url, List<Code> codes) -> Math.max(1, codes.size()))
+				.recordStats();
+		if (cacheProperties.getValueset_soft_values()) {
+			builder.softValues();
+		}
+		Cache<String, List<Code>> cache = builder.build();
+		monitor(theMeterRegistry, cache, "cql.valuesets");
+		return cache.asMap();
+	}
+
+	private static int weighLibrary(VersionedIdentifier theId, CompiledLibrary theLibrary) {
+		var library = theLibrary.getLibrary();
+		if (library == null || library.getStatements() == null) {
+			return 1;
+		}
+		return 1 + library.getStatements().getDef().size();
+	}
+
+	/**
+	 * Publishes cache.* (size, hits/misses, evictions) with tag cache=theName, and cache.weighted.size for weighed caches.
+	 */
+	private static void monitor(ObjectProvider<MeterRegistry> theMeterRegistry, Cache<?, ?> theCache, String theName) {
+		theMeterRegistry.ifAvailable(registry -> {
+			CaffeineCacheMetrics.monitor(registry, theCache, theName);
+			theCache.policy().eviction().filter(Policy.Eviction::isWeighted).ifPresent(eviction -> Gauge.builder(
+							"cache.weighted.size", eviction, e -> e.weightedSize().orElse(0))
+					.tag("cache", theName)
+					.description("Sum of the weights of the cached entries")
+					.register(registry));
+		});
 	}
 
 	@Bean
 	public ElmCacheResourceChangeListener elmCacheResourceChangeListener(
 			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
 			DaoRegistry theDaoRegistry,
-			EvaluationSettings theEvaluationSettings) {
+			EvaluationSettings theEvaluationSettings,
+			CrProperties theCrProperties) {
 		ElmCacheResourceChangeListener listener =
 				new ElmCacheResourceChangeListener(theDaoRegistry, theEvaluationSettings.getLibraryCache());
+		// Fallback only, writes are handled by cqlCacheInvalidationInterceptor
 		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
-				"Library", SearchParameterMap.newSynchronous(), listener, 1000);
+				"Library",
+				SearchParameterMap.newSynchronous(),
+				listener,
+				theCrProperties.getCql().getCache().getInvalidation_poll_millis());
 		return listener;
 	}
 
@@ -213,17 +348,47 @@ public class CrCommonConfig {
 	public CodeCacheResourceChangeListener codeCacheResourceChangeListener(
 			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
 			EvaluationSettings theEvaluationSettings,
-			DaoRegistry theDaoRegistry) {
+			DaoRegistry theDaoRegistry,
+			CrProperties theCrProperties) {
 
 		CodeCacheResourceChangeListener listener =
 				new CodeCacheResourceChangeListener(theDaoRegistry, theEvaluationSettings.getValueSetCache());
-		// registry
+		// registry, fallback only as for Library
 		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
-				"ValueSet", SearchParameterMap.newSynchronous(), listener, 1000);
+				"ValueSet",
+				SearchParameterMap.newSynchronous(),
+				listener,
+				theCrProperties.getCql().getCache().getInvalidation_poll_millis());
 
 		return listener;
 	}
 
+	@Bean
+	public CqlCacheInvalidationInterceptor cqlCacheInvalidationInterceptor(
+			CrProperties theCrProperties,
+			FhirContext theFhirContext,
+			EvaluationSettings theEvaluationSettings,
+			IInterceptorService theInterceptorService,
+			DataSource theDataSource,
+			DataSourceProperties theDataSourceProperties) {
+		PostgresCacheInvalidationChannel channel =
+				theCrProperties.getCql().getCache().getInvalidation_broadcast_enabled()
+								&& PostgresCacheInvalidationChannel.isPostgres(theDataSource)
+						? new PostgresCacheInvalidationChannel(
+								theDataSource,
+								theDataSourceProperties.determineUrl(),
+								theDataSourceProperties.determineUsername(),
+								theDataSourceProperties.determinePassword())
+						: null;
+		CqlCacheInvalidationInterceptor interceptor = new CqlCacheInvalidationInterceptor(
+				theFhirContext,
+				theEvaluationSettings.getLibraryCache(),
+				theEvaluationSettings.getValueSetCache(),
+				channel);
+		theInterceptorService.registerInterceptor(interceptor);
+		return interceptor;
+	}
+
 	@Bean
 	public ResourceChangeListenerRegistryInterceptor resourceChangeListenerRegistryInterceptor() {
 		return new ResourceChangeListenerRegistryInterceptor();
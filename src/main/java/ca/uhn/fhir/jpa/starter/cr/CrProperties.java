@@ -5,6 +5,7 @@ public class CrProperties {
 
 	private CareGapsProperties careGaps = new CareGapsProperties();
 	private CqlProperties cql = new CqlProperties();
+	private MeasureProperties measure = new MeasureProperties();
 
 	public Boolean getEnabled() {
 		return enabled;
@@ -29,4 +30,12 @@ public class CrProperties {
 	public void setCql(CqlProperties cql) {
 		this.cql = cql;
 	}
+
+	public MeasureProperties getMeasure() {
+		return measure;
+	}
+
+	public void setMeasure(MeasureProperties measure) {
+		this.measure = measure;
+	}
 }
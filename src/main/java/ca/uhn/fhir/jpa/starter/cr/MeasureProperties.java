@@ -0,0 +1,33 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class MeasureProperties {
+	// Population $evaluate-measure split into chunks of subjects evaluated concurrently on the cqlExecutor
+	private Boolean partitioned_evaluation_enabled = false;
+	private Integer partition_size = 500;
+	// Smaller populations are evaluated in one pass
+	private Integer partition_min_subjects = 1000;
+
+	public Boolean getPartitioned_evaluation_enabled() {
+		return partitioned_evaluation_enabled;
+	}
+
+	public void setPartitioned_evaluation_enabled(Boolean partitioned_evaluation_enabled) {
+		this.partitioned_evaluation_enabled = partitioned_evaluation_enabled;
+	}
+
+	public Integer getPartition_size() {
+		return partition_size;
+	}
+
+	public void setPartition_size(Integer partition_size) {
+		this.partition_size = partition_size;
+	}
+
+	public Integer getPartition_min_subjects() {
+		return partition_min_subjects;
+	}
+
+	public void setPartition_min_subjects(Integer partition_min_subjects) {
+		this.partition_min_subjects = partition_min_subjects;
+	}
+}
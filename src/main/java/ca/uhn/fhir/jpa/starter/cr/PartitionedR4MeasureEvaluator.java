@@ -0,0 +1,420 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.google.common.collect.Lists;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupPopulationComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupStratifierComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupPopulationComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Quantity;
+import org.opencds.cqf.fhir.cr.hapi.r4.R4MeasureEvaluatorSingleFactory;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureEvaluatorSingle;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureProcessor;
+import org.opencds.cqf.fhir.cr.measure.r4.R4RepositorySubjectProvider;
+import org.opencds.cqf.fhir.cr.measure.r4.utils.R4MeasureServiceUtils;
+import org.opencds.cqf.fhir.utility.monad.Either3;
+import org.opencds.cqf.fhir.utility.repository.Repositories;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Evaluates a population {@code $evaluate-measure} in partitions of subjects on the CQL executor.
+ * <p>
+ * Every partition is evaluated as one population report for its list of subjects by a measure processor of its own,
+ * and so with its own CQL engine context, while the compiled libraries and ValueSet expansions are shared through the
+ * global caches. The partition reports are summed into the summary report: population counts, stratifier strata and
+ * the proportion/ratio measure score. Subject-specific parts (evaluated resources, supplemental data) are not carried
+ * over.
+ * <p>
+ * Anything else - individual or subject-list reports, subjects other than all patients or a Group of patients,
+ * populations below {@code partition_min_subjects} and continuous variable measures, whose observations cannot be
+ * aggregated from partial counts - is passed to the regular single-pass evaluation.
+ */
+public class PartitionedR4MeasureEvaluator implements R4MeasureEvaluatorSingle {
+	private static final Logger ourLog = LoggerFactory.getLogger(PartitionedR4MeasureEvaluator.class);
+
+	private static final String MEASURE_OBSERVATION = "measure-observation";
+
+	/**
+	 * Evaluates the measure as one population report for a list of subjects.
+	 */
+	@FunctionalInterface
+	public interface SubjectListEvaluator {
+		MeasureReport evaluate(RequestDetails theRequestDetails, List<String> theSubjectIds);
+	}
+
+	private final R4MeasureEvaluatorSingleFactory myFactory;
+	private final IRepositoryFactory myRepositoryFactory;
+	private final MeasureEvaluationOptions myMeasureEvaluationOptions;
+	private final RequestDetails myRequestDetails;
+	private final DaoRegistry myDaoRegistry;
+	private final ExecutorService myExecutor;
+	private final MeasureProperties myMeasureProperties;
+
+	public PartitionedR4MeasureEvaluator(
+			R4MeasureEvaluatorSingleFactory theFactory,
+			IRepositoryFactory theRepositoryFactory,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			RequestDetails theRequestDetails,
+			DaoRegistry theDaoRegistry,
+			ExecutorService theExecutor,
+			MeasureProperties theMeasureProperties) {
+		myFactory = theFactory;
+		myRepositoryFactory = theRepositoryFactory;
+		myMeasureEvaluationOptions = theMeasureEvaluationOptions;
+		myRequestDetails = theRequestDetails;
+		myDaoRegistry = theDaoRegistry;
+		myExecutor = theExecutor;
+		myMeasureProperties = theMeasureProperties;
+	}
+
+	@Override
+	public MeasureReport evaluate(
+			Either3<CanonicalType, IdType, Measure> theMeasure,
+			ZonedDateTime thePeriodStart,
+			ZonedDateTime thePeriodEnd,
+			String theReportType,
+			String theSubjectId,
+			String theLastReceivedOn,
+			Endpoint theContentEndpoint,
+			Endpoint theTerminologyEndpoint,
+			Endpoint theDataEndpoint,
+			Bundle theAdditionalData,
+			Parameters theParameters,
+			String theProductLine,
+			String thePractitioner) {
+		Supplier<MeasureReport> regular = () -> myFactory
+				.create(myRequestDetails)
+				.evaluate(
+						theMeasure,
+						thePeriodStart,
+						thePeriodEnd,
+						theReportType,
+						theSubjectId,
+						theLastReceivedOn,
+						theContentEndpoint,
+						theTerminologyEndpoint,
+						theDataEndpoint,
+						theAdditionalData,
+						theParameters,
+						theProductLine,
+						thePractitioner);
+
+		boolean population = "population".equals(theReportType)
+				|| (theReportType == null && StringUtils.isBlank(theSubjectId));
+		if (!myMeasureProperties.getPartitioned_evaluation_enabled()
+				|| !population
+				|| StringUtils.isNotBlank(thePractitioner)) {
+			return regular.get();
+		}
+		List<String> subjects = resolveSubjects(theSubjectId);
+		if (subjects.size() < myMeasureProperties.getPartition_min_subjects()) {
+			return regular.get();
+		}
+
+		new MeasurePeriodValidator().validatePeriodStartAndEnd(thePeriodStart, thePeriodEnd);
+		SubjectListEvaluator subjectList = subjectListEvaluator(
+				theMeasure,
+				thePeriodStart,
+				thePeriodEnd,
+				theContentEndpoint,
+				theTerminologyEndpoint,
+				theDataEndpoint,
+				theAdditionalData,
+				theParameters);
+		List<List<String>> partitions = Lists.partition(subjects, myMeasureProperties.getPartition_size());
+		ourLog.info("Evaluating measure for {} subjects in {} partitions", subjects.size(), partitions.size());
+
+		// The first partition, on this thread, shows whether the measure can be summed at all
+		MeasureReport total = subjectList.evaluate(myRequestDetails, partitions.get(0));
+		if (hasPopulation(total, MEASURE_OBSERVATION)) {
+			return regular.get();
+		}
+
+		List<Future<MeasureReport>> futures = new ArrayList<>(partitions.size() - 1);
+		boolean completed = false;
+		try {
+			for (List<String> partition : partitions.subList(1, partitions.size())) {
+				// RequestDetails is not thread-safe, every partition gets its own copy, taken on this thread
+				RequestDetails partitionRequestDetails = new SystemRequestDetails(myRequestDetails);
+				futures.add(myExecutor.submit(() -> subjectList.evaluate(partitionRequestDetails, partition)));
+			}
+			for (Future<MeasureReport> future : futures) {
+				addCounts(total, future.get());
+			}
+			completed = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Measure evaluation interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException runtimeException) {
+				throw runtimeException;
+			}
+			throw new InternalErrorException(e.getCause());
+		} finally {
+			// Failed, interrupted or rejected by the executor part way through submitting
+			if (!completed) {
+				futures.forEach(f -> f.cancel(true));
+			}
+		}
+		MeasureReport summary = toSummary(total, theSubjectId);
+		if (theProductLine != null) {
+			new R4MeasureServiceUtils(myRepositoryFactory.create(myRequestDetails))
+					.addProductLineExtension(summary, theProductLine);
+		}
+		return summary;
+	}
+
+	/**
+	 * The regular evaluation of R4MeasureService, for a list of subjects: a new measure processor, and with it a new
+	 * CQL engine context, on every call.
+	 */
+	protected SubjectListEvaluator subjectListEvaluator(
+			Either3<CanonicalType, IdType, Measure> theMeasure,
+			ZonedDateTime thePeriodStart,
+			ZonedDateTime thePeriodEnd,
+			Endpoint theContentEndpoint,
+			Endpoint theTerminologyEndpoint,
+			Endpoint theDataEndpoint,
+			Bundle theAdditionalData,
+			Parameters theParameters) {
+		return (theRequestDetails, theSubjectIds) -> {
+			IRepository repository = Repositories.proxy(
+					myRepositoryFactory.create(theRequestDetails),
+					true,
+					theDataEndpoint,
+					theContentEndpoint,
+					theTerminologyEndpoint);
+			R4MeasureProcessor processor = new R4MeasureProcessor(
+					repository,
+					myMeasureEvaluationOptions,
+					new R4RepositorySubjectProvider(myMeasureEvaluationOptions.getSubjectProviderOptions()),
+					new R4MeasureServiceUtils(repository));
+			return processor.evaluateMeasure(
+					theMeasure,
+					thePeriodStart,
+					thePeriodEnd,
+					"population",
+					theSubjectIds,
+					theAdditionalData,
+					theParameters);
+		};
+	}
+
+	/**
+	 * @return {@code Patient/<id>} of every subject, or an empty list if they cannot be listed up front
+	 */
+	private List<String> resolveSubjects(String theSubjectId) {
+		if (StringUtils.isBlank(theSubjectId)) {
+			// Only the ids, the Patient resources themselves are not needed
+			IFhirResourceDao<IBaseResource> patientDao = myDaoRegistry.getResourceDao("Patient");
+			List<IIdType> patientIds = patientDao.searchForResourceIds(new SearchParameterMap(), myRequestDetails);
+			return patientIds.stream()
+					.map(id -> "Patient/" + id.getIdPart())
+					.toList();
+		}
+		if (!theSubjectId.startsWith("Group/")) {
+			return List.of();
+		}
+		IFhirResourceDao<Group> groupDao = myDaoRegistry.getResourceDao(Group.class);
+		Group group = groupDao.read(new IdType(theSubjectId), myRequestDetails);
+		List<String> subjects = new ArrayList<>();
+		for (Group.GroupMemberComponent member : group.getMember()) {
+			IIdType reference = member.getEntity().getReferenceElement();
+			if (!"Patient".equals(reference.getResourceType())) {
+				// Nested groups and practitioners are left to the regular evaluation
+				return List.of();
+			}
+			if (!member.getInactive()) {
+				subjects.add("Patient/" + reference.getIdPart());
+			}
+		}
+		return subjects.stream().distinct().toList();
+	}
+
+	private static boolean hasPopulation(MeasureReport theReport, String theCode) {
+		return theReport.getGroup().stream()
+				.flatMap(group -> group.getPopulation().stream())
+				.anyMatch(population -> theCode.equals(populationCode(population.getCode())));
+	}
+
+	/**
+	 * Adds the population and stratum counts of theSource to theTarget, strata missing in theTarget are copied.
+	 */
+	private static void addCounts(MeasureReport theTarget, MeasureReport theSource) {
+		if (theSource == null) {
+			return;
+		}
+		for (int g = 0; g < theSource.getGroup().size(); g++) {
+			MeasureReportGroupComponent sourceGroup = theSource.getGroup().get(g);
+			MeasureReportGroupComponent targetGroup = findGroup(theTarget, sourceGroup, g);
+			if (targetGroup == null) {
+				theTarget.addGroup(sourceGroup.copy());
+				continue;
+			}
+			for (MeasureReportGroupPopulationComponent population : sourceGroup.getPopulation()) {
+				String code = populationCode(population.getCode());
+				targetGroup.getPopulation().stream()
+						.filter(p -> code.equals(populationCode(p.getCode())))
+						.findFirst()
+						.ifPresentOrElse(
+								p -> p.setCount(p.getCount() + population.getCount()),
+								() -> targetGroup.addPopulation(population.copy()));
+			}
+			for (int s = 0; s < sourceGroup.getStratifier().size(); s++) {
+				MeasureReportGroupStratifierComponent sourceStratifier = sourceGroup.getStratifier().get(s);
+				if (s >= targetGroup.getStratifier().size()) {
+					targetGroup.addStratifier(sourceStratifier.copy());
+					continue;
+				}
+				addStratumCounts(targetGroup.getStratifier().get(s), sourceStratifier);
+			}
+		}
+	}
+
+	private static void addStratumCounts(
+			MeasureReportGroupStratifierComponent theTarget, MeasureReportGroupStratifierComponent theSource) {
+		Map<String, StratifierGroupComponent> targetStrata = new HashMap<>();
+		theTarget.getStratum().forEach(stratum -> targetStrata.put(stratumKey(stratum), stratum));
+		for (StratifierGroupComponent stratum : theSource.getStratum()) {
+			StratifierGroupComponent target = targetStrata.get(stratumKey(stratum));
+			if (target == null) {
+				theTarget.addStratum(stratum.copy());
+				continue;
+			}
+			for (StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+				String code = populationCode(population.getCode());
+				target.getPopulation().stream()
+						.filter(p -> code.equals(populationCode(p.getCode())))
+						.findFirst()
+						.ifPresentOrElse(
+								p -> p.setCount(p.getCount() + population.getCount()),
+								() -> target.addPopulation(population.copy()));
+			}
+		}
+	}
+
+	private static MeasureReportGroupComponent findGroup(
+			MeasureReport theReport, MeasureReportGroupComponent theGroup, int theIndex) {
+		if (theGroup.hasId()) {
+			return theReport.getGroup().stream()
+					.filter(group -> theGroup.getId().equals(group.getId()))
+					.findFirst()
+					.orElse(null);
+		}
+		return theIndex < theReport.getGroup().size() ? theReport.getGroup().get(theIndex) : null;
+	}
+
+	/**
+	 * Turns the summed individual reports into a summary report and recomputes the scores from the counts.
+	 */
+	private static MeasureReport toSummary(MeasureReport theReport, String theSubjectId) {
+		theReport.setType(MeasureReport.MeasureReportType.SUMMARY);
+		if (StringUtils.isBlank(theSubjectId)) {
+			theReport.setSubject(null);
+		} else {
+			theReport.getSubject().setReference(theSubjectId);
+		}
+		theReport.getEvaluatedResource().clear();
+		theReport.getContained().clear();
+		theReport.getExtension().clear();
+		for (MeasureReportGroupComponent group : theReport.getGroup()) {
+			Map<String, Integer> counts = new HashMap<>();
+			for (MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+				population.setSubjectResults(null);
+				counts.merge(populationCode(population.getCode()), population.getCount(), Integer::sum);
+			}
+			group.setMeasureScore(score(counts));
+			for (MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+				for (StratifierGroupComponent stratum : stratifier.getStratum()) {
+					Map<String, Integer> stratumCounts = new HashMap<>();
+					for (StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+						population.setSubjectResults(null);
+						stratumCounts.merge(
+								populationCode(population.getCode()), population.getCount(), Integer::sum);
+					}
+					stratum.setMeasureScore(score(stratumCounts));
+				}
+			}
+		}
+		return theReport;
+	}
+
+	/**
+	 * Proportion and ratio score, (numerator - exclusions) / (denominator - exclusions - exceptions); none for
+	 * cohort measures or an empty denominator.
+	 */
+	private static Quantity score(Map<String, Integer> theCounts) {
+		if (!theCounts.containsKey("numerator") || !theCounts.containsKey("denominator")) {
+			return null;
+		}
+		int numerator = theCounts.get("numerator") - theCounts.getOrDefault("numerator-exclusion", 0);
+		int denominator = theCounts.get("denominator")
+				- theCounts.getOrDefault("denominator-exclusion", 0)
+				- theCounts.getOrDefault("denominator-exception", 0);
+		if (denominator <= 0) {
+			return null;
+		}
+		return new Quantity((double) numerator / denominator);
+	}
+
+	private static String stratumKey(StratifierGroupComponent theStratum) {
+		StringBuilder key = new StringBuilder(conceptKey(theStratum.getValue()));
+		theStratum.getComponent().forEach(component -> key.append('|')
+				.append(conceptKey(component.getCode()))
+				.append('=')
+				.append(conceptKey(component.getValue())));
+		return key.toString();
+	}
+
+	private static String conceptKey(CodeableConcept theConcept) {
+		if (theConcept == null) {
+			return "";
+		}
+		if (theConcept.hasText()) {
+			return theConcept.getText();
+		}
+		StringBuilder key = new StringBuilder();
+		for (Coding coding : theConcept.getCoding()) {
+			key.append(coding.getSystem()).append('#').append(coding.getCode()).append(',');
+		}
+		return key.toString();
+	}
+
+	private static String populationCode(CodeableConcept theCode) {
+		return StringUtils.defaultString(theCode.getCodingFirstRep().getCode());
+	}
+}
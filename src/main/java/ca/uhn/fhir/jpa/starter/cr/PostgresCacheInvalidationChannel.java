@@ -0,0 +1,134 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Consumer;
+import javax.sql.DataSource;
+
+/**
+ * Cache invalidations between the nodes of a cluster sharing one PostgreSQL database, over {@code LISTEN/NOTIFY}.
+ * <p>
+ * {@link #notify(String)} runs {@code pg_notify} on the connection of the current transaction, so PostgreSQL delivers
+ * it to the listening nodes only when that transaction commits. Each node {@code LISTEN}s on a connection of its own,
+ * opened with the credentials of the datasource but outside of its pool, so that the listener neither takes a pooled
+ * connection for good nor hands one back still subscribed; after that connection is lost and re-established everything
+ * is invalidated, since notifications sent in between are gone.
+ */
+public class PostgresCacheInvalidationChannel implements AutoCloseable {
+	private static final Logger ourLog = LoggerFactory.getLogger(PostgresCacheInvalidationChannel.class);
+
+	private static final String CHANNEL = "hapi_cql_cache";
+	// PostgreSQL rejects longer payloads, which would fail the write
+	private static final int MAX_PAYLOAD_BYTES = 7900;
+	private static final int RECEIVE_TIMEOUT_MILLIS = 5000;
+	private static final long RECONNECT_DELAY_MILLIS = 10000;
+
+	private final JdbcTemplate myJdbcTemplate;
+	private final String myUrl;
+	private final String myUsername;
+	private final String myPassword;
+	private volatile boolean myRunning = true;
+	private Thread myListenerThread;
+
+	/**
+	 * @param theDataSource the pooled datasource of the application, for {@code pg_notify}
+	 * @param theUrl        JDBC url of the same database, for the listening connection
+	 */
+	public PostgresCacheInvalidationChannel(
+			DataSource theDataSource, String theUrl, String theUsername, String thePassword) {
+		myJdbcTemplate = new JdbcTemplate(theDataSource);
+		myUrl = theUrl;
+		myUsername = theUsername;
+		myPassword = thePassword;
+	}
+
+	public static boolean isPostgres(DataSource theDataSource) {
+		try (Connection connection = theDataSource.getConnection()) {
+			return connection.isWrapperFor(PGConnection.class);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Queues the notification in the current transaction. A failing {@code pg_notify} (e.g. a full notification queue)
+	 * aborts that transaction on PostgreSQL, so the exception is not caught here: the write fails rather than leaving
+	 * the other nodes with stale caches.
+	 */
+	public void notify(String thePayload) {
+		if (thePayload.getBytes(StandardCharsets.UTF_8).length > MAX_PAYLOAD_BYTES) {
+			ourLog.warn("Cache invalidation too long to broadcast, other nodes rely on polling: {}", thePayload);
+			return;
+		}
+		myJdbcTemplate.query("SELECT pg_notify(?, ?)", rs -> {}, CHANNEL, thePayload);
+	}
+
+	/**
+	 * Starts the background listener.
+	 *
+	 * @param theListener  receives the payload of every notification, including the ones sent by this node
+	 * @param theReconnect called after the listening connection was re-established
+	 */
+	public synchronized void listen(Consumer<String> theListener, Runnable theReconnect) {
+		if (myListenerThread != null) {
+			throw new IllegalStateException("Already listening");
+		}
+		myListenerThread = new Thread(() -> receive(theListener, theReconnect), "cql-cache-invalidation");
+		myListenerThread.setDaemon(true);
+		myListenerThread.start();
+	}
+
+	private void receive(Consumer<String> theListener, Runnable theReconnect) {
+		boolean connectedBefore = false;
+		while (myRunning) {
+			try (Connection connection = DriverManager.getConnection(myUrl, myUsername, myPassword)) {
+				// LISTEN only takes effect once committed
+				connection.setAutoCommit(true);
+				try (Statement statement = connection.createStatement()) {
+					statement.execute("LISTEN " + CHANNEL);
+				}
+				if (connectedBefore) {
+					theReconnect.run();
+				}
+				connectedBefore = true;
+				PGConnection pgConnection = connection.unwrap(PGConnection.class);
+				while (myRunning) {
+					PGNotification[] notifications = pgConnection.getNotifications(RECEIVE_TIMEOUT_MILLIS);
+					if (notifications != null) {
+						for (PGNotification notification : notifications) {
+							theListener.accept(notification.getParameter());
+						}
+					}
+				}
+			} catch (SQLException | RuntimeException e) {
+				if (!myRunning) {
+					return;
+				}
+				ourLog.warn("Cache invalidation listener failed, reconnecting: {}", e.getMessage());
+				try {
+					Thread.sleep(RECONNECT_DELAY_MILLIS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		myRunning = false;
+		if (myListenerThread != null) {
+			myListenerThread.interrupt();
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package ca.uhn.fhir.jpa.starter.cr;
 
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.starter.annotations.OnR4Condition;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.ApplyOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.CrR4Config;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.DataRequirementsOperationConfig;
@@ -9,10 +12,17 @@ import org.opencds.cqf.fhir.cr.hapi.config.r4.ExtractOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.PackageOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.PopulateOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.QuestionnaireOperationConfig;
+import org.opencds.cqf.fhir.cr.hapi.r4.R4MeasureEvaluatorSingleFactory;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import java.util.concurrent.ExecutorService;
+
 @Configuration
 @Conditional({OnR4Condition.class, CrConfigCondition.class})
 @Import({
@@ -26,4 +36,41 @@ import org.springframework.context.annotation.Import;
 	PopulateOperationConfig.class,
 	QuestionnaireOperationConfig.class
 })
-public class StarterCrR4Config {}
+public class StarterCrR4Config {
+
+	/**
+	 * Wraps the $evaluate-measure service factory of CrR4Config when partitioned evaluation is enabled.
+	 */
+	@Bean
+	static BeanPostProcessor partitionedMeasureEvaluatorPostProcessor(
+			ObjectProvider<CrProperties> theCrProperties,
+			ObjectProvider<IRepositoryFactory> theRepositoryFactory,
+			ObjectProvider<MeasureEvaluationOptions> theMeasureEvaluationOptions,
+			ObjectProvider<DaoRegistry> theDaoRegistry,
+			ObjectProvider<ExecutorService> theCqlExecutor) {
+		return new BeanPostProcessor() {
+			@Override
+			public Object postProcessAfterInitialization(Object theBean, String theBeanName) {
+				if (!(theBean instanceof R4MeasureEvaluatorSingleFactory factory)) {
+					return theBean;
+				}
+				MeasureProperties measureProperties = theCrProperties.getObject().getMeasure();
+				if (!measureProperties.getPartitioned_evaluation_enabled()) {
+					return theBean;
+				}
+				if (measureProperties.getPartition_size() == null || measureProperties.getPartition_size() <= 0) {
+					throw new ConfigurationException("hapi.fhir.cr.measure.partition_size must be greater than 0, not "
+							+ measureProperties.getPartition_size());
+				}
+				return (R4MeasureEvaluatorSingleFactory) theRequestDetails -> new PartitionedR4MeasureEvaluator(
+						factory,
+						theRepositoryFactory.getObject(),
+						theMeasureEvaluationOptions.getObject(),
+						theRequestDetails,
+						theDaoRegistry.getObject(),
+						theCqlExecutor.getObject(),
+						measureProperties);
+			}
+		};
+	}
+}
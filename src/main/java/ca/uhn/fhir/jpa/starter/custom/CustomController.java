@@ -2,21 +2,86 @@ package ca.uhn.fhir.jpa.starter.custom;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 @RestController
 public class CustomController {
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	private LoincService loincService;
-	public CustomController(LoincService loincService) {
+	private final LoincImporter loincImporter;
+	public CustomController(LoincService loincService, LoincImporter loincImporter) {
 		this.loincService = loincService;
+		this.loincImporter = loincImporter;
 	}
 	@GetMapping("/test")
 	public String test() {
 		logger.info("Test endpoint called");
 		return "Hello";
 	}
-}
 
+	/**
+	 * Загружает файл из hapi.fhir.custom.loinc.import_file в таблицу loinc и перестраивает индекс.
+	 *
+	 * Пример вызова:
+	 * POST http://localhost:8080/api/loinc/import
+	 */
+	@PostMapping("/api/loinc/import")
+	public ResponseEntity<?> importLoinc() {
+		try {
+			return ResponseEntity.ok(loincImporter.importConfiguredFile());
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+		} catch (Exception e) {
+			logger.error("LOINC import failed", e);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("LOINC import failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Перестраивает индекс LOINC в памяти из таблицы loinc без перезапуска сервера.
+	 * Проверка Observation во время перезагрузки не останавливается - новый индекс подменяется атомарно.
+	 *
+	 * Пример вызова:
+	 * POST http://localhost:8080/api/loinc/reload
+	 */
+	@PostMapping("/api/loinc/reload")
+	public ResponseEntity<?> reloadLoinc() {
+		try {
+			LoincCodeIndex index = loincService.reload();
+			if (index == null) {
+				return ResponseEntity.ok(Map.of("indexEnabled", false));
+			}
+			return ResponseEntity.ok(indexStatus(index));
+		} catch (Exception e) {
+			logger.error("LOINC reload failed", e);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("LOINC reload failed: " + e.getMessage());
+		}
+	}
+
+	@GetMapping("/api/loinc/status")
+	public ResponseEntity<?> loincStatus() {
+		LoincCodeIndex index = loincService.getIndex();
+		if (index == null) {
+			return ResponseEntity.ok(Map.of("indexEnabled", false));
+		}
+		return ResponseEntity.ok(indexStatus(index));
+	}
+
+	private static Map<String, Object> indexStatus(LoincCodeIndex index) {
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("indexEnabled", true);
+		status.put("generation", index.getGeneration());
+		status.put("codeCount", index.size());
+		status.put("buildMillis", index.getBuildMillis());
+		status.put("builtAt", index.getBuiltAt());
+		return status;
+	}
+}
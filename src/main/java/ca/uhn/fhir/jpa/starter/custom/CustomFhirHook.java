@@ -1,13 +1,17 @@
 package ca.uhn.fhir.jpa.starter.custom;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.bundle.BundleEntryParts;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
@@ -15,16 +19,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 @Interceptor
 @Component
 public class CustomFhirHook {
+	// Результаты проверки кодов Bundle, сохранённые в RequestDetails: код -> есть ли он в справочнике
+	static final String RESOLVED_LOINC_CODES_KEY = CustomFhirHook.class.getName() + "_RESOLVED_LOINC_CODES";
+
 	private final Logger ourLog = LoggerFactory.getLogger(CustomFhirHook.class);
+	private final FhirContext fhirContext;
 	private final LoincService loincService;
+	private final LoincProperties loincProperties;
+	// Выбирается один раз по версии FHIR сервера, без рефлексии на каждый ресурс
+	private final IObservationFieldExtractor fieldExtractor;
 
-	public CustomFhirHook(LoincService loincService) {
+	public CustomFhirHook(LoincService loincService, LoincProperties loincProperties, FhirContext fhirContext) {
+		this.fhirContext = fhirContext;
 		this.loincService = loincService;
+		this.loincProperties = loincProperties;
+		this.fieldExtractor = IObservationFieldExtractor.forFhirContext(fhirContext);
 	}
 
 	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
@@ -37,7 +56,12 @@ public class CustomFhirHook {
 			// 1. Проверка LOINC кода
 			Optional<String> loincCode = getLoincCode(theResource);
 			if (loincCode.isPresent()) {
-				loincService.validate(loincCode.get());
+				validateLoincCode(loincCode.get(), theRequestDetails);
+				// 1a. Проверка единиц valueQuantity по справочнику
+				String unitError = checkUnits(theResource, loincCode.get());
+				if (unitError != null) {
+					throwObservationError(unitError);
+				}
 			} else {
 				ourLog.warn("Observation has no LOINC code");
 				throwObservationError("Observation must contain a LOINC code.");
@@ -60,49 +84,122 @@ public class CustomFhirHook {
 		}
 	}
 
-	private Optional<String> getLoincCode(IBaseResource observation) {
-		try {
-			// Get 'code' element (CodeableConcept)
-			Object code = observation.getClass().getMethod("getCode").invoke(observation);
-			if (code == null) return Optional.empty();
-
-			// Get 'coding' list from CodeableConcept
-			Object codingList = code.getClass().getMethod("getCoding").invoke(code);
-			if (!(codingList instanceof java.util.List)) return Optional.empty();
-
-			for (Object coding : (java.util.List<?>) codingList) {
-				String system = (String) coding.getClass().getMethod("getSystem").invoke(coding);
-				if ("http://loinc.org".equals(system)) {
-					String codeValue = (String) coding.getClass().getMethod("getCode").invoke(coding);
-					return Optional.ofNullable(codeValue);
+	/**
+	 * Предварительная проверка transaction/batch Bundle: все различные LOINC коды новых Observation
+	 * проверяются за один проход (одна проверка по индексу или один запрос IN), а не по одному
+	 * на каждый ресурс.
+	 * Для transaction все ошибки возвращаются сразу одним OperationOutcome. Для batch записи по-прежнему
+	 * проверяются по отдельности, но уже по готовому результату из RequestDetails.
+	 */
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+	public void validateBundle(RequestDetails theRequestDetails, RestOperationTypeEnum theOperation) {
+		if (theOperation != RestOperationTypeEnum.TRANSACTION
+				|| !(theRequestDetails.getResource() instanceof IBaseBundle)) {
+			return;
+		}
+		IBaseBundle bundle = (IBaseBundle) theRequestDetails.getResource();
+		List<BundleEntryParts> entries = BundleUtil.toListOfEntries(fhirContext, bundle);
+
+		// Индексы записей с новыми Observation и их LOINC коды (null - кода нет)
+		List<Integer> observationEntries = new ArrayList<>();
+		List<String> observationCodes = new ArrayList<>();
+		Set<String> distinctCodes = new HashSet<>();
+		for (int i = 0; i < entries.size(); i++) {
+			BundleEntryParts entry = entries.get(i);
+			IBaseResource resource = entry.getResource();
+			if (resource == null
+					|| entry.getMethod() != RequestTypeEnum.POST
+					|| !"Observation".equals(resource.fhirType())) {
+				continue;
+			}
+			String code = fieldExtractor.getLoincCode(resource);
+			if (code != null && code.isBlank()) {
+				code = null;
+			}
+			observationEntries.add(i);
+			observationCodes.add(code);
+			if (code != null) {
+				distinctCodes.add(code);
+			}
+		}
+		if (observationEntries.isEmpty()) {
+			return;
+		}
+
+		Set<String> unknownCodes = loincService.findUnknownCodes(distinctCodes);
+		Map<String, Boolean> resolved = new HashMap<>();
+		for (String code : distinctCodes) {
+			resolved.put(code, !unknownCodes.contains(code));
+		}
+		theRequestDetails.getUserData().put(RESOLVED_LOINC_CODES_KEY, resolved);
+
+		if (!"transaction".equals(BundleUtil.getBundleType(fhirContext, bundle))) {
+			return;
+		}
+
+		OperationOutcome outcome = new OperationOutcome();
+		for (int i = 0; i < observationEntries.size(); i++) {
+			int entryIndex = observationEntries.get(i);
+			String code = observationCodes.get(i);
+			String location = "Bundle.entry[" + entryIndex + "].resource";
+			if (code == null) {
+				addObservationIssue(outcome, location, "Observation must contain a LOINC code.");
+			} else if (unknownCodes.contains(code)) {
+				addObservationIssue(outcome, location, "Invalid LOINC code: " + code);
+			} else {
+				String unitError = checkUnits(entries.get(entryIndex).getResource(), code);
+				if (unitError != null) {
+					addObservationIssue(outcome, location + ".valueQuantity.code", unitError);
 				}
 			}
-		} catch (Exception e) {
-			ourLog.error("Failed to extract LOINC code from Observation", e);
+			String status = fieldExtractor.getStatus(entries.get(entryIndex).getResource());
+			if (!"preliminary".equalsIgnoreCase(status)) {
+				addObservationIssue(outcome, location, "Observation must have 'preliminary' status upon creation.");
+			}
+		}
+		if (outcome.hasIssue()) {
+			String message = "Transaction contains " + outcome.getIssue().size() + " invalid Observation issue(s)";
+			throw new UnprocessableEntityException(message, outcome);
 		}
-		return Optional.empty();
 	}
 
-	Optional<String> getObservationStatus(IBaseResource observation) {
-		try {
-			// Get 'status' element (CodeType or Enum)
-			Object status = observation.getClass().getMethod("getStatus").invoke(observation);
-			if (status == null) return Optional.empty();
-
-			// If it's a CodeType (e.g., HAPI FHIR R4), getValue() returns the string
-			// If it's an Enum (e.g., org.hl7.fhir.r4.model.Observation.ObservationStatus), toString() or name() might work
-			// The most robust way is to check if it has a 'getValue' method, or just use toString()
-			try {
-				return Optional.ofNullable((String) status.getClass().getMethod("getValue").invoke(status));
-			} catch (NoSuchMethodException e) {
-				// If no getValue(), try toString() (e.g., for enums)
-				return Optional.ofNullable(status.toString());
+	private void validateLoincCode(String code, RequestDetails theRequestDetails) {
+		if (theRequestDetails != null) {
+			@SuppressWarnings("unchecked")
+			Map<String, Boolean> resolved =
+					(Map<String, Boolean>) theRequestDetails.getUserData().get(RESOLVED_LOINC_CODES_KEY);
+			Boolean known = resolved != null ? resolved.get(code) : null;
+			if (known != null) {
+				if (!known) {
+					throw new LoincValidationException("LOINC code not found: " + code, code);
+				}
+				return;
 			}
+		}
+		loincService.validate(code);
+	}
 
-		} catch (Exception e) {
-			ourLog.error("Failed to extract status from Observation", e);
+	private String checkUnits(IBaseResource observation, String code) {
+		if (!Boolean.TRUE.equals(loincProperties.getUnits_validation_enabled())) {
+			return null;
 		}
-		return Optional.empty();
+		return loincService.checkUnits(code, fieldExtractor.getValueQuantityUnit(observation));
+	}
+
+	private Optional<String> getLoincCode(IBaseResource observation) {
+		return Optional.ofNullable(fieldExtractor.getLoincCode(observation));
+	}
+
+	Optional<String> getObservationStatus(IBaseResource observation) {
+		return Optional.ofNullable(fieldExtractor.getStatus(observation));
+	}
+
+	private void addObservationIssue(OperationOutcome outcome, String location, String message) {
+		outcome.addIssue()
+			.setSeverity(IssueSeverity.ERROR)
+			.setCode(IssueType.CODEINVALID)
+			.setDiagnostics(message)
+			.addExpression(location);
 	}
 
 	private void throwObservationError(String message) {
@@ -0,0 +1,45 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Извлечение полей Observation, нужных для валидации, без рефлексии.
+ * Реализация выбирается один раз при старте по версии FHIR из {@link FhirContext}.
+ */
+public interface IObservationFieldExtractor {
+
+	String LOINC_SYSTEM = "http://loinc.org";
+	String UCUM_SYSTEM = "http://unitsofmeasure.org";
+
+	/**
+	 * @return код первого coding с system = http://loinc.org или null
+	 */
+	String getLoincCode(IBaseResource theObservation);
+
+	/**
+	 * @return код статуса (например, "preliminary") или null
+	 */
+	String getStatus(IBaseResource theObservation);
+
+	/**
+	 * @return код единицы valueQuantity, если system не указан или это UCUM, иначе null
+	 */
+	String getValueQuantityUnit(IBaseResource theObservation);
+
+	static IObservationFieldExtractor forFhirContext(FhirContext theFhirContext) {
+		ObservationFieldExtractorTerser fallback = new ObservationFieldExtractorTerser(theFhirContext);
+		switch (theFhirContext.getVersion().getVersion()) {
+			case DSTU3:
+				return new ObservationFieldExtractorDstu3(fallback);
+			case R4:
+				return new ObservationFieldExtractorR4(fallback);
+			case R4B:
+				return new ObservationFieldExtractorR4B(fallback);
+			case R5:
+				return new ObservationFieldExtractorR5(fallback);
+			default:
+				return fallback;
+		}
+	}
+}
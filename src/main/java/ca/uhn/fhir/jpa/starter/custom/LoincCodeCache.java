@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ограниченный по размеру кэш перед {@link LoincRepository} - вариант для случаев, когда весь справочник
+ * (например, полный релиз LOINC с единицами и названиями) держать в памяти не нужно.
+ * <p>
+ * Кэшируются и найденные, и ненайденные коды (Optional.empty()), так как коды с опечатками - заметная
+ * часть запросов. Статистика (hit/miss, время загрузки, вытеснения) публикуется в Micrometer как cache.* с тегом
+ * cache=loinc.codes.
+ */
+@Component
+public class LoincCodeCache {
+	public static final String CACHE_NAME = "loinc.codes";
+
+	private final LoadingCache<String, Optional<LoincCode>> cache;
+
+	public LoincCodeCache(
+			LoincRepository loincRepository,
+			LoincProperties loincProperties,
+			ObjectProvider<MeterRegistry> meterRegistry) {
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(loincProperties.getCache_max_size())
+				.expireAfterWrite(loincProperties.getCache_ttl_minutes(), TimeUnit.MINUTES)
+				.recordStats()
+				.build(new CacheLoader<String, Optional<LoincCode>>() {
+					@Override
+					public Optional<LoincCode> load(String code) {
+						return loincRepository.findByCode(code);
+					}
+
+					@Override
+					public Map<String, Optional<LoincCode>> loadAll(Set<? extends String> codes) {
+						Map<String, Optional<LoincCode>> result = new HashMap<>();
+						for (String code : codes) {
+							// По умолчанию код считается ненайденным, чтобы промахи тоже попали в кэш
+							result.put(code, Optional.empty());
+						}
+						for (LoincCode loincCode : loincRepository.findByCodeInChunked(codes)) {
+							result.put(loincCode.getLoincCode(), Optional.of(loincCode));
+						}
+						return result;
+					}
+				});
+
+		meterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, cache, CACHE_NAME));
+	}
+
+	public Optional<LoincCode> get(String code) {
+		return cache.get(code);
+	}
+
+	/**
+	 * Все коды из набора; отсутствующие в кэше загружаются одним запросом на каждые
+	 * {@value LoincRepository#IN_CLAUSE_CHUNK} кодов.
+	 */
+	public Map<String, Optional<LoincCode>> getAll(Collection<String> codes) {
+		return cache.getAll(codes);
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+}
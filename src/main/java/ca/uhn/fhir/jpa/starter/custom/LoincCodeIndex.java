@@ -0,0 +1,190 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Неизменяемый снимок таблицы loinc в памяти.
+ * <p>
+ * Коды вида {@code NNNNN-C} (цифры, дефис, контрольная цифра) упаковываются в один {@code int}
+ * ({@code NNNNN * 10 + C}) и хранятся в отсортированном массиве - это ~4 байта на код вместо
+ * объекта String. Поиск - бинарный, без аллокаций. Коды другого формата (если такие есть
+ * в таблице) хранятся отдельно в обычной хеш-таблице.
+ * <p>
+ * Рядом хранятся ожидаемые единицы измерения (колонка units): каждая различная строка единиц
+ * хранится один раз, а для кода - только её номер в параллельном массиве.
+ * <p>
+ * Индекс можно безопасно читать из любого потока, при перезагрузке он целиком заменяется новым экземпляром.
+ */
+public final class LoincCodeIndex {
+	// 8 цифр + контрольная цифра гарантированно помещаются в int
+	private static final int MAX_DIGITS = 8;
+	// Номер строки единиц для кодов без units
+	private static final int NO_UNITS = 0;
+
+	private final int[] packedCodes;
+	// unitRefs[i] - номер в units для packedCodes[i]
+	private final int[] unitRefs;
+	private final Map<String, Integer> irregularCodes;
+	private final String[] units;
+	private final long generation;
+	private final long builtAt;
+	private final long buildMillis;
+
+	private LoincCodeIndex(
+			int[] packedCodes,
+			int[] unitRefs,
+			Map<String, Integer> irregularCodes,
+			String[] units,
+			long generation,
+			long startedAt) {
+		this.packedCodes = packedCodes;
+		this.unitRefs = unitRefs;
+		this.irregularCodes = irregularCodes;
+		this.units = units;
+		this.generation = generation;
+		this.builtAt = System.currentTimeMillis();
+		this.buildMillis = builtAt - startedAt;
+	}
+
+	public static LoincCodeIndex of(Collection<String> codes) {
+		return of(new ArrayList<>(codes), null, 0, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param codes      коды LOINC
+	 * @param codeUnits  ожидаемые единицы для кодов (тот же порядок, что и codes) или null
+	 * @param generation порядковый номер загрузки справочника
+	 * @param startedAt  момент начала загрузки (включая чтение из БД), для расчёта времени построения
+	 */
+	public static LoincCodeIndex of(List<String> codes, List<String> codeUnits, long generation, long startedAt) {
+		List<String> unitTable = new ArrayList<>();
+		unitTable.add(null);
+		Map<String, Integer> unitIds = new HashMap<>();
+
+		// Старшие 32 бита - упакованный код, младшие - номер строки единиц, чтобы сортировать их вместе
+		long[] entries = new long[codes.size()];
+		int count = 0;
+		Map<String, Integer> irregular = new HashMap<>();
+		for (int i = 0; i < codes.size(); i++) {
+			String code = codes.get(i);
+			String unit = codeUnits != null ? codeUnits.get(i) : null;
+			int unitId = NO_UNITS;
+			if (unit != null && !unit.isBlank()) {
+				unitId = unitIds.computeIfAbsent(unit, u -> {
+					unitTable.add(u);
+					return unitTable.size() - 1;
+				});
+			}
+
+			int key = pack(code);
+			if (key >= 0) {
+				entries[count++] = ((long) key << 32) | unitId;
+			} else if (code != null) {
+				irregular.putIfAbsent(code, unitId);
+			}
+		}
+
+		Arrays.sort(entries, 0, count);
+		// Убираем дубликаты кодов
+		int[] packed = new int[count];
+		int[] refs = new int[count];
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			int key = (int) (entries[i] >>> 32);
+			if (unique == 0 || packed[unique - 1] != key) {
+				packed[unique] = key;
+				refs[unique] = (int) entries[i];
+				unique++;
+			}
+		}
+
+		return new LoincCodeIndex(
+				Arrays.copyOf(packed, unique),
+				Arrays.copyOf(refs, unique),
+				Map.copyOf(irregular),
+				unitTable.toArray(new String[0]),
+				generation,
+				startedAt);
+	}
+
+	/**
+	 * Упаковывает код вида {@code NNNNN-C} в неотрицательный int.
+	 * Возвращает -1, если код не соответствует формату (в том числе при ведущих нулях,
+	 * чтобы упаковка оставалась взаимно однозначной).
+	 */
+	static int pack(String code) {
+		if (code == null) {
+			return -1;
+		}
+		int length = code.length();
+		int digits = length - 2;
+		if (digits < 1 || digits > MAX_DIGITS || code.charAt(length - 2) != '-' || code.charAt(0) == '0') {
+			return -1;
+		}
+
+		int value = 0;
+		for (int i = 0; i < digits; i++) {
+			char c = code.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+
+		char check = code.charAt(length - 1);
+		if (check < '0' || check > '9') {
+			return -1;
+		}
+		return value * 10 + (check - '0');
+	}
+
+	public boolean contains(String code) {
+		int key = pack(code);
+		if (key >= 0) {
+			return Arrays.binarySearch(packedCodes, key) >= 0;
+		}
+		return code != null && irregularCodes.containsKey(code);
+	}
+
+	/**
+	 * @return ожидаемые единицы кода в том виде, как они записаны в таблице (например, {@code mg/dL;mg/L}),
+	 * или null, если код неизвестен или единицы не указаны
+	 */
+	public String getUnits(String code) {
+		int key = pack(code);
+		if (key >= 0) {
+			int position = Arrays.binarySearch(packedCodes, key);
+			return position >= 0 ? units[unitRefs[position]] : null;
+		}
+		Integer unitId = code != null ? irregularCodes.get(code) : null;
+		return unitId != null ? units[unitId] : null;
+	}
+
+	/**
+	 * @return все различные строки единиц из справочника
+	 */
+	public List<String> getDistinctUnits() {
+		return Arrays.asList(units).subList(1, units.length);
+	}
+
+	public int size() {
+		return packedCodes.length + irregularCodes.size();
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	public long getBuildMillis() {
+		return buildMillis;
+	}
+}
@@ -0,0 +1,101 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Следит за файлом hapi.fhir.custom.loinc.import_file и при его изменении загружает его в таблицу loinc
+ * и перестраивает индекс - в фоновом потоке, без перезапуска сервера.
+ * Включается свойством watch_import_file.
+ */
+@Component
+public class LoincFileWatcher {
+	private static final Logger ourLog = LoggerFactory.getLogger(LoincFileWatcher.class);
+
+	// Файл релиза копируется не мгновенно - ждём, пока изменения прекратятся
+	private static final long QUIET_PERIOD_MILLIS = 2000;
+
+	private final LoincProperties loincProperties;
+	private final LoincImporter loincImporter;
+	private WatchService watchService;
+
+	public LoincFileWatcher(LoincProperties loincProperties, LoincImporter loincImporter) {
+		this.loincProperties = loincProperties;
+		this.loincImporter = loincImporter;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() throws IOException {
+		if (!Boolean.TRUE.equals(loincProperties.getWatch_import_file())) {
+			return;
+		}
+		Path file = Path.of(loincProperties.getImport_file()).toAbsolutePath();
+		watchService = FileSystems.getDefault().newWatchService();
+		file.getParent()
+				.register(
+						watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+		Thread thread = new Thread(() -> watch(file), "loinc-file-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		ourLog.info("Watching {} for LOINC dictionary updates", file);
+	}
+
+	private void watch(Path file) {
+		try {
+			while (true) {
+				if (!isFileChanged(watchService.take(), file)) {
+					continue;
+				}
+				// Собираем все события, пришедшие за время копирования файла
+				WatchKey key;
+				while ((key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					isFileChanged(key, file);
+				}
+
+				try {
+					ourLog.info("{} changed, reloading LOINC dictionary", file);
+					loincImporter.importFile(file);
+				} catch (Exception e) {
+					ourLog.error("Failed to reload LOINC dictionary from {}", file, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// остановка приложения
+		}
+	}
+
+	private static boolean isFileChanged(WatchKey key, Path file) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (file.getFileName().equals(event.context())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	@PreDestroy
+	public void stop() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+	}
+}
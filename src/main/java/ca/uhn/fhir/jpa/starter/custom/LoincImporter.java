@@ -0,0 +1,284 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Загрузка справочника LOINC из CSV в таблицу loinc (вместо ручной загрузки после script.py).
+ * <p>
+ * Файл читается потоково, целиком в память не попадает. Строки сначала попадают во временную
+ * таблицу loinc_staging_* (на PostgreSQL - через {@code COPY FROM STDIN}, на остальных БД - JDBC batch),
+ * затем одной транзакцией содержимое loinc заменяется содержимым staging. Повторный запуск с тем же
+ * файлом даёт тот же результат, а до коммита читатели видят старый справочник.
+ * <p>
+ * У каждой загрузки своя staging-таблица, так что загрузки на разных узлах (или file watcher на нескольких
+ * узлах) не удаляют данные друг друга; при одновременной замене побеждает последняя закоммиченная.
+ */
+@Service
+public class LoincImporter {
+	private static final Logger ourLog = LoggerFactory.getLogger(LoincImporter.class);
+
+	private static final String STAGING_TABLE_PREFIX = "loinc_staging_";
+	// Сколько строк копить перед отправкой очередного куска в COPY
+	private static final int COPY_CHUNK_ROWS = 5000;
+
+	private final DataSource dataSource;
+	private final LoincProperties loincProperties;
+	private final LoincService loincService;
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	public LoincImporter(DataSource dataSource, LoincProperties loincProperties, LoincService loincService) {
+		this.dataSource = dataSource;
+		this.loincProperties = loincProperties;
+		this.loincService = loincService;
+	}
+
+	// Загрузка при старте идёт в отдельном потоке, чтобы не задерживать готовность сервера
+	@EventListener(ApplicationReadyEvent.class)
+	public void importOnStartup() {
+		if (!Boolean.TRUE.equals(loincProperties.getImport_on_startup())) {
+			return;
+		}
+		Thread thread = new Thread(
+				() -> {
+					try {
+						importFile(Path.of(loincProperties.getImport_file()));
+					} catch (Exception e) {
+						ourLog.error("LOINC import on startup failed", e);
+					}
+				},
+				"loinc-import");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public ImportResult importConfiguredFile() throws IOException, SQLException {
+		return importFile(Path.of(loincProperties.getImport_file()));
+	}
+
+	public ImportResult importFile(Path file) throws IOException, SQLException {
+		if (!running.compareAndSet(false, true)) {
+			throw new IllegalStateException("LOINC import is already running");
+		}
+		try {
+			long start = System.currentTimeMillis();
+			ourLog.info("Importing LOINC codes from {}", file.toAbsolutePath());
+
+			String stagingTable = newStagingTableName();
+			long rows;
+			int codes;
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+					CSVParser parser = CSVFormat.DEFAULT
+							.builder()
+							.setHeader()
+							.setSkipHeaderRecord(true)
+							.build()
+							.parse(reader);
+					Connection connection = dataSource.getConnection()) {
+				int codeColumn = findColumn(parser.getHeaderMap(), "code", "LOINC_NUM");
+				int unitsColumn = findColumn(parser.getHeaderMap(), "units", "EXAMPLE_UCUM_UNITS", "EXAMPLE_UNITS");
+				if (codeColumn < 0) {
+					throw new IllegalArgumentException("No 'code' or 'LOINC_NUM' column in " + file);
+				}
+
+				boolean autoCommit = connection.getAutoCommit();
+				connection.setAutoCommit(false);
+				try {
+					createStagingTable(connection, stagingTable);
+					if (isPostgres(connection)) {
+						rows = copyIntoStaging(connection, stagingTable, parser, codeColumn, unitsColumn);
+					} else {
+						rows = batchIntoStaging(connection, stagingTable, parser, codeColumn, unitsColumn);
+					}
+					connection.commit();
+
+					codes = swapFromStaging(connection, stagingTable);
+					connection.commit();
+				} catch (SQLException | RuntimeException e) {
+					connection.rollback();
+					throw e;
+				} finally {
+					dropStagingTable(connection, stagingTable);
+					connection.setAutoCommit(autoCommit);
+				}
+			}
+
+			long loadMillis = System.currentTimeMillis() - start;
+			ourLog.info("Imported {} LOINC rows ({} codes) in {} ms", rows, codes, loadMillis);
+
+			LoincCodeIndex index = loincService.reload();
+			return new ImportResult(rows, codes, index != null ? index.getGeneration() : 0, loadMillis);
+		} finally {
+			running.set(false);
+		}
+	}
+
+	private long copyIntoStaging(
+			Connection connection, String stagingTable, CSVParser parser, int codeColumn, int unitsColumn)
+			throws SQLException, IOException {
+		CopyIn copyIn = connection
+				.unwrap(PGConnection.class)
+				.getCopyAPI()
+				.copyIn("COPY " + stagingTable + " (code, units) FROM STDIN WITH (FORMAT csv)");
+		try {
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream(COPY_CHUNK_ROWS * 16);
+			long rows = 0;
+			for (CSVRecord record : parser) {
+				String code = value(record, codeColumn);
+				if (code == null) {
+					continue;
+				}
+				chunk.write(CSVFormat.DEFAULT
+						.format(code, value(record, unitsColumn))
+						.getBytes(StandardCharsets.UTF_8));
+				chunk.write('\n');
+				if (++rows % COPY_CHUNK_ROWS == 0) {
+					copyIn.writeToCopy(chunk.toByteArray(), 0, chunk.size());
+					chunk.reset();
+				}
+			}
+			if (chunk.size() > 0) {
+				copyIn.writeToCopy(chunk.toByteArray(), 0, chunk.size());
+			}
+			return copyIn.endCopy();
+		} finally {
+			if (copyIn.isActive()) {
+				copyIn.cancelCopy();
+			}
+		}
+	}
+
+	private long batchIntoStaging(
+			Connection connection, String stagingTable, CSVParser parser, int codeColumn, int unitsColumn)
+			throws SQLException {
+		int batchSize = loincProperties.getImport_batch_size();
+		long rows = 0;
+		try (PreparedStatement insert =
+				connection.prepareStatement("insert into " + stagingTable + " (code, units) values (?, ?)")) {
+			for (CSVRecord record : parser) {
+				String code = value(record, codeColumn);
+				if (code == null) {
+					continue;
+				}
+				insert.setString(1, code);
+				insert.setString(2, value(record, unitsColumn));
+				insert.addBatch();
+				if (++rows % batchSize == 0) {
+					insert.executeBatch();
+				}
+			}
+			insert.executeBatch();
+		}
+		return rows;
+	}
+
+	// Имя из префикса и случайного суффикса: только буквы, цифры и '_', поэтому безопасно подставлять в SQL
+	private static String newStagingTableName() {
+		return STAGING_TABLE_PREFIX + UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+	}
+
+	private void createStagingTable(Connection connection, String stagingTable) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("create table " + stagingTable + " (code varchar(255), units varchar(255))");
+		}
+	}
+
+	// Возвращает число кодов в loinc после замены
+	private int swapFromStaging(Connection connection, String stagingTable) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate("delete from loinc");
+			// group by - на случай повторяющихся кодов в файле
+			return statement.executeUpdate("insert into loinc (code, units) select code, max(units) from " + stagingTable
+					+ " group by code");
+		}
+	}
+
+	private void dropStagingTable(Connection connection, String stagingTable) {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("drop table if exists " + stagingTable);
+			connection.commit();
+		} catch (SQLException e) {
+			ourLog.warn("Failed to drop {}: {}", stagingTable, e.getMessage());
+		}
+	}
+
+	private static boolean isPostgres(Connection connection) throws SQLException {
+		return "PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName())
+				&& connection.isWrapperFor(PGConnection.class);
+	}
+
+	private static int findColumn(Map<String, Integer> header, String... names) {
+		for (Map.Entry<String, Integer> entry : header.entrySet()) {
+			// В выгрузках из Excel первый заголовок может начинаться с BOM
+			String column = entry.getKey().replace("\uFEFF", "").trim();
+			for (String name : names) {
+				if (name.equalsIgnoreCase(column)) {
+					return entry.getValue();
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static String value(CSVRecord record, int column) {
+		if (column < 0 || column >= record.size()) {
+			return null;
+		}
+		String value = record.get(column).trim();
+		return value.isEmpty() ? null : value;
+	}
+
+	public static class ImportResult {
+		private final long rows;
+		private final int codes;
+		private final long generation;
+		private final long millis;
+
+		public ImportResult(long rows, int codes, long generation, long millis) {
+			this.rows = rows;
+			this.codes = codes;
+			this.generation = generation;
+			this.millis = millis;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public int getCodes() {
+			return codes;
+		}
+
+		// Поколение индекса в памяти после загрузки (0 - индекс выключен)
+		public long getGeneration() {
+			return generation;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+	}
+}
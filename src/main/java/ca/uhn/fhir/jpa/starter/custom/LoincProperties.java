@@ -0,0 +1,98 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "hapi.fhir.custom.loinc")
+public class LoincProperties {
+
+	// Держать справочник LOINC в памяти. Если false - каждый код проверяется запросом в таблицу loinc
+	private Boolean index_enabled = true;
+	// Проверять, что единица Observation.valueQuantity (UCUM) совместима с units кода LOINC
+	private Boolean units_validation_enabled = false;
+	// Загрузить import_file в таблицу loinc в фоне после старта сервера
+	private Boolean import_on_startup = false;
+	// LOINC.csv (code,units) или Loinc.csv из полного релиза LOINC (LOINC_NUM,...,EXAMPLE_UCUM_UNITS)
+	private String import_file = "LOINC.csv";
+	// Размер пакета для загрузки через JDBC batch (H2, MSSQL и др.)
+	private Integer import_batch_size = 1000;
+	// Следить за import_file и перезагружать справочник при его изменении (новый релиз LOINC)
+	private Boolean watch_import_file = false;
+	// Кэш результатов поиска в таблице loinc (и найденных, и ненайденных кодов), когда индекс в памяти выключен
+	private Boolean cache_enabled = true;
+	private Long cache_max_size = 100_000L;
+	private Long cache_ttl_minutes = 60L;
+
+	public Boolean getIndex_enabled() {
+		return index_enabled;
+	}
+
+	public void setIndex_enabled(Boolean index_enabled) {
+		this.index_enabled = index_enabled;
+	}
+
+	public Boolean getUnits_validation_enabled() {
+		return units_validation_enabled;
+	}
+
+	public void setUnits_validation_enabled(Boolean units_validation_enabled) {
+		this.units_validation_enabled = units_validation_enabled;
+	}
+
+	public Boolean getImport_on_startup() {
+		return import_on_startup;
+	}
+
+	public void setImport_on_startup(Boolean import_on_startup) {
+		this.import_on_startup = import_on_startup;
+	}
+
+	public String getImport_file() {
+		return import_file;
+	}
+
+	public void setImport_file(String import_file) {
+		this.import_file = import_file;
+	}
+
+	public Integer getImport_batch_size() {
+		return import_batch_size;
+	}
+
+	public void setImport_batch_size(Integer import_batch_size) {
+		this.import_batch_size = import_batch_size;
+	}
+
+	public Boolean getWatch_import_file() {
+		return watch_import_file;
+	}
+
+	public void setWatch_import_file(Boolean watch_import_file) {
+		this.watch_import_file = watch_import_file;
+	}
+
+	public Boolean getCache_enabled() {
+		return cache_enabled;
+	}
+
+	public void setCache_enabled(Boolean cache_enabled) {
+		this.cache_enabled = cache_enabled;
+	}
+
+	public Long getCache_max_size() {
+		return cache_max_size;
+	}
+
+	public void setCache_max_size(Long cache_max_size) {
+		this.cache_max_size = cache_max_size;
+	}
+
+	public Long getCache_ttl_minutes() {
+		return cache_ttl_minutes;
+	}
+
+	public void setCache_ttl_minutes(Long cache_ttl_minutes) {
+		this.cache_ttl_minutes = cache_ttl_minutes;
+	}
+}
@@ -1,13 +1,61 @@
 package ca.uhn.fhir.jpa.starter.custom;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Function;
 
 @Repository
 public interface LoincRepository extends JpaRepository<LoincCode,String> {
+	// Ограничение на число параметров в одном IN (MSSQL допускает не более 2100)
+	int IN_CLAUSE_CHUNK = 1000;
+
 	List<LoincCode> findByUnits(String units);
 	Optional<LoincCode> findByCode(String code);
+
+	// Только коды и единицы, без загрузки сущностей - используется для построения индекса в памяти
+	@Query("select l.code, l.units from LoincCode l")
+	List<Object[]> findAllCodesAndUnits();
+
+	// Какие из переданных кодов есть в таблице - одним запросом для всего Bundle
+	@Query("select l.code from LoincCode l where l.code in :codes")
+	List<String> findExistingCodes(@Param("codes") Collection<String> codes);
+
+	List<LoincCode> findByCodeIn(Collection<String> codes);
+
+	/**
+	 * {@link #findExistingCodes} для любого числа кодов - один запрос на каждые {@value #IN_CLAUSE_CHUNK} кодов.
+	 */
+	default List<String> findExistingCodesChunked(Collection<? extends String> codes) {
+		return inChunks(codes, this::findExistingCodes);
+	}
+
+	/**
+	 * {@link #findByCodeIn} для любого числа кодов - один запрос на каждые {@value #IN_CLAUSE_CHUNK} кодов.
+	 */
+	default List<LoincCode> findByCodeInChunked(Collection<? extends String> codes) {
+		return inChunks(codes, this::findByCodeIn);
+	}
+
+	private static <T> List<T> inChunks(Collection<? extends String> codes, Function<List<String>, List<T>> query) {
+		List<T> result = new ArrayList<>();
+		List<String> chunk = new ArrayList<>(Math.min(codes.size(), IN_CLAUSE_CHUNK));
+		for (String code : codes) {
+			chunk.add(code);
+			if (chunk.size() == IN_CLAUSE_CHUNK) {
+				result.addAll(query.apply(chunk));
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			result.addAll(query.apply(chunk));
+		}
+		return result;
+	}
 }
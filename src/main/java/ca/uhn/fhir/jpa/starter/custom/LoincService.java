@@ -1,16 +1,97 @@
 package ca.uhn.fhir.jpa.starter.custom;
 
-import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 @Service
 public class LoincService {
+	private static final Logger ourLog = LoggerFactory.getLogger(LoincService.class);
+
 	private final LoincRepository loincRepository;
+	private final LoincProperties loincProperties;
+	private final LoincCodeCache loincCodeCache;
+	private final LoincUnitValidator loincUnitValidator;
+	// null - индекс не загружен (выключен или загрузка не удалась), проверяем через кэш/БД
+	private final AtomicReference<LoincCodeIndex> index = new AtomicReference<>();
+	private final AtomicLong generations = new AtomicLong();
+	// Перезагрузки выполняются по очереди, проверки кодов эту блокировку не используют
+	private final Object reloadLock = new Object();
 
-	public LoincService(LoincRepository loincRepository) {
+	public LoincService(
+			LoincRepository loincRepository,
+			LoincProperties loincProperties,
+			LoincCodeCache loincCodeCache,
+			LoincUnitValidator loincUnitValidator) {
 		this.loincRepository = loincRepository;
+		this.loincProperties = loincProperties;
+		this.loincCodeCache = loincCodeCache;
+		this.loincUnitValidator = loincUnitValidator;
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!Boolean.TRUE.equals(loincProperties.getIndex_enabled())) {
+			ourLog.info("LOINC in-memory index is disabled, codes will be validated against the database");
+			return;
+		}
+		try {
+			reload();
+		} catch (Exception e) {
+			ourLog.warn("Failed to load LOINC index, falling back to database lookups", e);
+		}
+	}
+
+	/**
+	 * Перечитывает таблицу loinc и атомарно подменяет индекс.
+	 * Пока строится новый индекс, проверки продолжают работать по старому.
+	 *
+	 * @return новый индекс или null, если индекс в памяти выключен (тогда только очищается кэш)
+	 */
+	public LoincCodeIndex reload() {
+		synchronized (reloadLock) {
+			if (!Boolean.TRUE.equals(loincProperties.getIndex_enabled())) {
+				loincCodeCache.invalidateAll();
+				loincUnitValidator.invalidateAll();
+				return null;
+			}
+			long start = System.currentTimeMillis();
+			List<Object[]> rows = loincRepository.findAllCodesAndUnits();
+			List<String> codes = new ArrayList<>(rows.size());
+			List<String> units = new ArrayList<>(rows.size());
+			for (Object[] row : rows) {
+				codes.add((String) row[0]);
+				units.add((String) row[1]);
+			}
+			LoincCodeIndex newIndex = LoincCodeIndex.of(codes, units, generations.incrementAndGet(), start);
+			// Таблица канонических единиц готовится до публикации индекса, чтобы проверки не ждали её построения
+			loincUnitValidator.precompile(newIndex.getDistinctUnits());
+			index.set(newIndex);
+			loincCodeCache.invalidateAll();
+			ourLog.info(
+					"Loaded {} LOINC codes into memory in {} ms (generation {})",
+					newIndex.size(),
+					newIndex.getBuildMillis(),
+					newIndex.getGeneration());
+			return newIndex;
+		}
+	}
+
+	/**
+	 * @return текущий индекс или null, если он не загружен
+	 */
+	public LoincCodeIndex getIndex() {
+		return index.get();
 	}
 
 	public void validate(String code) throws LoincValidationException {
@@ -18,8 +99,85 @@ public class LoincService {
 			throw new LoincValidationException("LOINC code cannot be empty", code);
 		}
 
-		if (loincRepository.findByCode(code).isEmpty()) {
+		if (!isKnown(code)) {
 			throw new LoincValidationException("LOINC code not found: " + code,code);
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Возвращает коды из набора, которых нет в справочнике. Без индекса в памяти -
+	 * один запрос на каждые {@value LoincRepository#IN_CLAUSE_CHUNK} кодов (только для кодов, которых нет в кэше)
+	 * вместо запроса на каждый код.
+	 */
+	public Set<String> findUnknownCodes(Collection<String> codes) {
+		Set<String> unknown = new HashSet<>();
+		LoincCodeIndex current = index.get();
+		if (current != null) {
+			for (String code : codes) {
+				if (!current.contains(code)) {
+					unknown.add(code);
+				}
+			}
+			return unknown;
+		}
+
+		if (isCacheEnabled()) {
+			loincCodeCache.getAll(codes).forEach((code, loincCode) -> {
+				if (loincCode.isEmpty()) {
+					unknown.add(code);
+				}
+			});
+			return unknown;
+		}
+
+		Set<String> existing = new HashSet<>(loincRepository.findExistingCodesChunked(codes));
+		for (String code : codes) {
+			if (!existing.contains(code)) {
+				unknown.add(code);
+			}
+		}
+		return unknown;
+	}
+
+	/**
+	 * Проверяет, что единица valueQuantity совместима с ожидаемыми единицами кода LOINC.
+	 *
+	 * @return описание несоответствия или null, если единицы совместимы или проверить их нельзя
+	 * (единица не указана или у кода в справочнике нет единиц)
+	 */
+	public String checkUnits(String code, String unit) {
+		if (unit == null || unit.isBlank()) {
+			return null;
+		}
+		String expectedUnits = getExpectedUnits(code);
+		if (expectedUnits == null || loincUnitValidator.isCompatible(expectedUnits, unit)) {
+			return null;
+		}
+		return "Unit '" + unit + "' is not compatible with LOINC code " + code + " (expected: " + expectedUnits + ")";
+	}
+
+	private String getExpectedUnits(String code) {
+		LoincCodeIndex current = index.get();
+		if (current != null) {
+			return current.getUnits(code);
+		}
+		Optional<LoincCode> loincCode =
+				isCacheEnabled() ? loincCodeCache.get(code) : loincRepository.findByCode(code);
+		return loincCode.map(LoincCode::getUnits).filter(u -> !u.isBlank()).orElse(null);
+	}
+
+	private boolean isKnown(String code) {
+		LoincCodeIndex current = index.get();
+		if (current != null) {
+			return current.contains(code);
+		}
+		if (isCacheEnabled()) {
+			return loincCodeCache.get(code).isPresent();
+		}
+		return loincRepository.findByCode(code).isPresent();
+	}
+
+	private boolean isCacheEnabled() {
+		return Boolean.TRUE.equals(loincProperties.getCache_enabled());
+	}
+}
@@ -0,0 +1,101 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import ca.uhn.fhir.jpa.model.util.UcumServiceUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.fhir.ucum.Pair;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Проверка совместимости единиц UCUM без обращения к терминологическому серверу.
+ * <p>
+ * Единицы сравниваются по канонической форме UCUM (например, {@code mg/dL} и {@code g/L} - обе {@code g/m3}).
+ * Ожидаемые единицы из справочника ({@code mg/dL;mg/L}) компилируются заранее при загрузке индекса,
+ * канонические формы единиц из входящих ресурсов кэшируются. Если единицу не удаётся разобрать как UCUM
+ * (например, температуры или произвольный текст), она сравнивается посимвольно.
+ */
+@Component
+public class LoincUnitValidator {
+	// Значение в кэше для единиц, которые не удалось привести к канонической форме
+	private static final String NOT_CANONICAL = "";
+	// Клиентские единицы - произвольные строки, поэтому кэш ограничен
+	private static final long MAX_CACHED_UNITS = 10_000;
+
+	// Заменяется целиком при каждой перезагрузке, чтобы единицы, удалённые из справочника, не копились
+	private volatile Map<String, ExpectedUnits> expectedUnits = new ConcurrentHashMap<>();
+	private final Cache<String, String> canonicalUnits =
+			Caffeine.newBuilder().maximumSize(MAX_CACHED_UNITS).build();
+
+	/**
+	 * Заранее разбирает строки единиц из справочника (вызывается при каждой перезагрузке индекса)
+	 * и заменяет ими ранее разобранные.
+	 */
+	public void precompile(Collection<String> theUnits) {
+		Map<String, ExpectedUnits> compiled = new ConcurrentHashMap<>();
+		for (String units : theUnits) {
+			compiled.computeIfAbsent(units, this::compile);
+		}
+		expectedUnits = compiled;
+	}
+
+	/**
+	 * Забывает разобранные единицы справочника (перезагрузка без индекса в памяти).
+	 */
+	public void invalidateAll() {
+		expectedUnits = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @param theExpectedUnits ожидаемые единицы кода из таблицы loinc, через ';'
+	 * @param theUnit          код единицы из valueQuantity
+	 */
+	public boolean isCompatible(String theExpectedUnits, String theUnit) {
+		ExpectedUnits expected = expectedUnits.computeIfAbsent(theExpectedUnits, this::compile);
+		if (expected.literal.contains(theUnit)) {
+			return true;
+		}
+		String canonical = canonicalize(theUnit);
+		return !NOT_CANONICAL.equals(canonical) && expected.canonical.contains(canonical);
+	}
+
+	private ExpectedUnits compile(String theUnits) {
+		Set<String> literal = new HashSet<>();
+		Set<String> canonical = new HashSet<>();
+		for (String unit : theUnits.split(";")) {
+			unit = unit.trim();
+			if (unit.isEmpty()) {
+				continue;
+			}
+			literal.add(unit);
+			String canonicalUnit = canonicalize(unit);
+			if (!NOT_CANONICAL.equals(canonicalUnit)) {
+				canonical.add(canonicalUnit);
+			}
+		}
+		return new ExpectedUnits(Set.copyOf(literal), Set.copyOf(canonical));
+	}
+
+	private String canonicalize(String theUnit) {
+		return canonicalUnits.get(theUnit, unit -> {
+			Pair pair = UcumServiceUtil.getCanonicalForm(UcumServiceUtil.UCUM_CODESYSTEM_URL, BigDecimal.ONE, unit);
+			return pair != null && pair.getCode() != null ? pair.getCode() : NOT_CANONICAL;
+		});
+	}
+
+	private static class ExpectedUnits {
+		private final Set<String> literal;
+		private final Set<String> canonical;
+
+		private ExpectedUnits(Set<String> literal, Set<String> canonical) {
+			this.literal = literal;
+			this.canonical = canonical;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+
+import java.util.List;
+
+public class ObservationFieldExtractorDstu3 implements IObservationFieldExtractor {
+	private final IObservationFieldExtractor fallback;
+
+	public ObservationFieldExtractorDstu3(IObservationFieldExtractor theFallback) {
+		this.fallback = theFallback;
+	}
+
+	@Override
+	public String getLoincCode(IBaseResource theObservation) {
+		if (!(theObservation instanceof Observation)) {
+			return fallback.getLoincCode(theObservation);
+		}
+		Observation observation = (Observation) theObservation;
+		// has*() не создаёт пустые элементы, в отличие от get*()
+		if (!observation.hasCode()) {
+			return null;
+		}
+		List<Coding> codings = observation.getCode().getCoding();
+		for (int i = 0; i < codings.size(); i++) {
+			Coding coding = codings.get(i);
+			if (LOINC_SYSTEM.equals(coding.getSystem())) {
+				return coding.getCode();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String getStatus(IBaseResource theObservation) {
+		if (!(theObservation instanceof Observation)) {
+			return fallback.getStatus(theObservation);
+		}
+		Observation observation = (Observation) theObservation;
+		return observation.hasStatus() ? observation.getStatusElement().getValueAsString() : null;
+	}
+
+	@Override
+	public String getValueQuantityUnit(IBaseResource theObservation) {
+		if (!(theObservation instanceof Observation)) {
+			return fallback.getValueQuantityUnit(theObservation);
+		}
+		Observation observation = (Observation) theObservation;
+		if (!observation.hasValueQuantity()) {
+			return null;
+		}
+		Quantity quantity = observation.getValueQuantity();
+		if (quantity.hasSystem() && !UCUM_SYSTEM.equals(quantity.getSystem())) {
+			return null;
+		}
+		return quantity.getCode();
+	}
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+
+/**
+ * Универсальная реализация через {@link FhirTerser} - для версий FHIR без отдельного экстрактора (DSTU2)
+ * и для ресурсов, класс которых не совпал с ожидаемой версией.
+ */
+public class ObservationFieldExtractorTerser implements IObservationFieldExtractor {
+	private final FhirContext fhirContext;
+	private final FhirTerser terser;
+
+	public ObservationFieldExtractorTerser(FhirContext theFhirContext) {
+		this.fhirContext = theFhirContext;
+		this.terser = theFhirContext.newTerser();
+	}
+
+	@Override
+	public String getLoincCode(IBaseResource theObservation) {
+		List<IBase> codings = terser.getValues(theObservation, "Observation.code.coding");
+		for (IBase coding : codings) {
+			if (LOINC_SYSTEM.equals(terser.getSinglePrimitiveValueOrNull(coding, "system"))) {
+				return terser.getSinglePrimitiveValueOrNull(coding, "code");
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String getStatus(IBaseResource theObservation) {
+		return terser.getSinglePrimitiveValueOrNull(theObservation, "Observation.status");
+	}
+
+	@Override
+	public String getValueQuantityUnit(IBaseResource theObservation) {
+		IBase value = terser.getSingleValueOrNull(theObservation, "Observation.value", IBase.class);
+		if (value == null
+				|| !"Quantity".equals(fhirContext.getElementDefinition(value.getClass()).getName())) {
+			return null;
+		}
+		String system = terser.getSinglePrimitiveValueOrNull(value, "system");
+		if (system != null && !UCUM_SYSTEM.equals(system)) {
+			return null;
+		}
+		return terser.getSinglePrimitiveValueOrNull(value, "code");
+	}
+}
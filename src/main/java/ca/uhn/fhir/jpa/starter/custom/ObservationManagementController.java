@@ -1,7 +1,22 @@
 package ca.uhn.fhir.jpa.starter.custom;
 
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import ca.uhn.fhir.jpa.dao.tx.IHapiTransactionService;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.PatchTypeEnum;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.ParameterUtil;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import org.hl7.fhir.r4.model.Observation;
@@ -16,13 +31,20 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.IdType;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/api/observations") // Базовый путь для вашего не-FHIR API
@@ -30,56 +52,156 @@ public class ObservationManagementController {
 
 	private static final Logger ourLog = LoggerFactory.getLogger(ObservationManagementController.class);
 
+	// Смена статуса выполняется, только если он всё ещё 'preliminary' - проверка и запись атомарны
+	private static final String FINALIZE_PATCH = "["
+		+ "{\"op\":\"test\",\"path\":\"/status\",\"value\":\"preliminary\"},"
+		+ "{\"op\":\"replace\",\"path\":\"/status\",\"value\":\"final\"}"
+		+ "]";
+
 	@Autowired
 	private IFhirResourceDao<Observation> myObservationDao;
 
 	@Autowired
 	private CustomFhirHook customFhirHook; // Для переиспользования логики получения статуса
 
+	@Autowired
+	private IHapiTransactionService myTransactionService;
+
+	@Autowired
+	private MatchUrlService myMatchUrlService;
+
+	@Autowired
+	private FhirContext myFhirContext;
+
+	@Autowired
+	private ObservationProperties observationProperties;
+
+	@Autowired
+	private IJobCoordinator myJobCoordinator;
+
 	/**
 	 * Эндпоинт для изменения статуса Observation на 'final'.
 	 *
 	 * Пример вызова:
 	 * POST http://localhost:8080/api/observations/{id}/finalize
 	 * Content-Type: application/json
+	 * If-Match: W/"3"                (необязательно - ожидаемая версия ресурса)
+	 * Prefer: return=minimal         (необязательно - ответ без тела, только ETag)
 	 * {
 	 *   "comment": "Окончательная верификация проведена."
 	 * }
 	 *
+	 * Проверка статуса и его смена выполняются одним JSON Patch (test + replace) внутри сервера, без отдельного
+	 * чтения ресурса в контроллере. Если ресурс изменили параллельно, при If-Match возвращается 412, а без него
+	 * патч повторяется до hapi.fhir.custom.observations.finalize_max_retries раз, затем возвращается 409.
+	 *
 	 * @param id ID ресурса Observation.
 	 * @param payload Map, содержащая необязательный комментарий.
-	 * @return Обновленный ресурс Observation или OperationOutcome в случае ошибки.
+	 * @return Обновленный ресурс Observation (или пустой ответ при Prefer: return=minimal) либо OperationOutcome в случае ошибки.
 	 */
 	@PostMapping("/{id}/finalize")
 	public ResponseEntity<?> finalizeObservation(
 		@PathVariable String id,
-		@RequestBody(required = false) Map<String, String> payload) {
+		@RequestBody(required = false) Map<String, String> payload,
+		@RequestHeader(value = Constants.HEADER_IF_MATCH, required = false) String ifMatch,
+		@RequestHeader(value = Constants.HEADER_PREFER, required = false) String prefer) {
 
 		String comment = (payload != null) ? payload.get("comment") : null;
 		ourLog.info("Received /api/observations/{}/finalize request with comment: {}", id, comment);
 
-		Observation observationToUpdate;
+		// HAPI FHIR DAO требует IdType
+		IdType observationId = new IdType("Observation", id);
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		if (ifMatch != null) {
+			String expectedVersion = ParameterUtil.parseETagValue(ifMatch);
+			if (expectedVersion == null || expectedVersion.isBlank()) {
+				return createErrorResponse(
+					"Invalid If-Match header: " + ifMatch,
+					IssueType.INVALID,
+					IssueSeverity.ERROR,
+					HttpStatus.BAD_REQUEST);
+			}
+			// Версия в id - HAPI сверит её с текущей под блокировкой строки, как для PUT с If-Match
+			observationId = observationId.withVersion(expectedVersion);
+		}
+		// С If-Match конфликт - это ответ клиенту, без него патч повторяется
+		int maxRetries = ifMatch != null ? 0 : observationProperties.getFinalize_max_retries();
+
 		try {
-			// HAPI FHIR DAO требует IdType
-			IdType observationId = new IdType("Observation", id);
-			observationToUpdate = myObservationDao.read(observationId); // RequestDetails не нужен для чтения в таком контексте, HAPI предоставит его сам
-		} catch (ResourceNotFoundException e) {
+			DaoMethodOutcome outcome = patchWithRetries(observationId, maxRetries, requestDetails);
+			ourLog.info("Observation {} successfully finalized.", id);
+
+			String version = outcome.getId().getVersionIdPart();
+			ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+				.eTag("W/\"" + version + "\"")
+				.header(Constants.HEADER_CONTENT_LOCATION, outcome.getId().toUnqualified().getValue());
+			if (prefer != null && prefer.contains(Constants.HEADER_PREFER_RETURN + "=" + Constants.HEADER_PREFER_RETURN_MINIMAL)) {
+				return response.build();
+			}
+			IBaseResource updated = outcome.getResource() != null
+				? outcome.getResource()
+				: myObservationDao.read(outcome.getId(), requestDetails);
+			return response.body(updated); // Возвращаем обновленный ресурс
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
 			ourLog.error("Observation {} not found for finalization.", id);
 			return createErrorResponse(
 				"Observation with ID " + id + " not found.",
 				IssueType.NOTFOUND,
 				IssueSeverity.ERROR,
 				HttpStatus.NOT_FOUND);
+		} catch (ResourceVersionConflictException e) {
+			if (ifMatch != null) {
+				return createErrorResponse(
+					"Observation with ID " + id + " has been modified, expected version " + observationId.getVersionIdPart() + ".",
+					IssueType.CONFLICT,
+					IssueSeverity.ERROR,
+					HttpStatus.PRECONDITION_FAILED);
+			}
+			ourLog.error("Observation {} kept changing concurrently, giving up: {}", id, e.getMessage());
+			return createErrorResponse(
+				"Observation with ID " + id + " is being modified concurrently, try again.",
+				IssueType.CONFLICT,
+				IssueSeverity.ERROR,
+				HttpStatus.CONFLICT);
+		} catch (InvalidRequestException e) {
+			// Не прошла проверка test в патче - статус уже не 'preliminary'. Читаем ресурс только на этом пути
+			return createStatusErrorResponse(id, e);
+		} catch (UnprocessableEntityException e) {
+			// Это исключения, брошенные вашим хуком (CustomFhirHook)
+			ourLog.error("Validation failed for Observation {}: {}", id, e.getMessage());
+			// Возвращаем OperationOutcome, который уже содержится в исключении HAPI FHIR
+			return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(e.getOperationOutcome());
 		} catch (Exception e) {
-			ourLog.error("Error reading Observation {}: {}", id, e.getMessage(), e);
+			ourLog.error("An unexpected error occurred while finalizing Observation {}: {}", id, e.getMessage(), e);
 			return createErrorResponse(
-				"Internal server error when reading Observation: " + e.getMessage(),
+				"Failed to finalize Observation due to an internal error: " + e.getMessage(),
 				IssueType.EXCEPTION,
 				IssueSeverity.FATAL,
 				HttpStatus.INTERNAL_SERVER_ERROR);
 		}
+	}
 
-		Optional<String> currentStatus = getObservationStatusFromHook(observationToUpdate);
+	private DaoMethodOutcome patchWithRetries(IdType observationId, int maxRetries, SystemRequestDetails requestDetails) {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return myObservationDao.patch(
+					observationId, null, PatchTypeEnum.JSON_PATCH, FINALIZE_PATCH, null, requestDetails);
+			} catch (ResourceVersionConflictException e) {
+				if (attempt >= maxRetries) {
+					throw e;
+				}
+				ourLog.info("Version conflict finalizing {}, retrying ({} of {})", observationId.getIdPart(), attempt + 1, maxRetries);
+			}
+		}
+	}
+
+	private ResponseEntity<?> createStatusErrorResponse(String id, InvalidRequestException thePatchError) {
+		Optional<String> currentStatus;
+		try {
+			currentStatus = getObservationStatusFromHook(myObservationDao.read(new IdType("Observation", id), new SystemRequestDetails()));
+		} catch (Exception e) {
+			currentStatus = Optional.empty();
+		}
 		if (currentStatus.isPresent() && "final".equalsIgnoreCase(currentStatus.get())) {
 			return createErrorResponse(
 				"Observation with ID " + id + " is already in 'final' status.",
@@ -87,44 +209,196 @@ public class ObservationManagementController {
 				IssueSeverity.ERROR,
 				HttpStatus.BAD_REQUEST);
 		}
-		if (currentStatus.isPresent() && !"preliminary".equalsIgnoreCase(currentStatus.get())) {
+		if (currentStatus.isPresent()) {
 			return createErrorResponse(
 				"Observation with ID " + id + " cannot be finalized from status '" + currentStatus.get() + "'. It must be 'preliminary'.",
 				IssueType.INVALID, // Изменено на INVALID
 				IssueSeverity.ERROR,
 				HttpStatus.BAD_REQUEST);
 		}
+		return createErrorResponse(thePatchError.getMessage(), IssueType.INVALID, IssueSeverity.ERROR, HttpStatus.BAD_REQUEST);
+	}
 
-		observationToUpdate.setStatus(Observation.ObservationStatus.FINAL);
-
-		// Если хотите добавить комментарий как Extension или в Note
-		// Например:
-		// if (comment != null && !comment.isEmpty()) {
-		//    observationToUpdate.addNote().setText(comment);
-		// }
+	/**
+	 * Пакетный перевод Observation из 'preliminary' в 'final'.
+	 *
+	 * Пример вызова:
+	 * POST http://localhost:8080/api/observations/finalize
+	 * Content-Type: application/json
+	 * {
+	 *   "ids": ["123", "124", "125"]
+	 * }
+	 * или
+	 * {
+	 *   "query": "status=preliminary&subject=Patient/42"
+	 * }
+	 *
+	 * Все Observation загружаются одним поиском и обновляются в одной транзакции: если хотя бы одно
+	 * обновление не удалось, не применяется ни одно. Размер пачки ограничен
+	 * hapi.fhir.custom.observations.finalize_max_batch_size.
+	 *
+	 * @return итог по каждому id (finalized, not-found, already-final, invalid-status) или OperationOutcome
+	 */
+	@PostMapping("/finalize")
+	public ResponseEntity<?> finalizeObservations(@RequestBody FinalizeRequest request) {
+		boolean hasIds = request != null && request.getIds() != null && !request.getIds().isEmpty();
+		boolean hasQuery = request != null && request.getQuery() != null && !request.getQuery().isBlank();
+		if (hasIds == hasQuery) {
+			return createErrorResponse(
+				"Exactly one of 'ids' or 'query' must be specified.",
+				IssueType.REQUIRED,
+				IssueSeverity.ERROR,
+				HttpStatus.BAD_REQUEST);
+		}
 
+		int maxBatchSize = observationProperties.getFinalize_max_batch_size();
+		if (hasIds && request.getIds().size() > maxBatchSize) {
+			return createErrorResponse(
+				"Too many ids: " + request.getIds().size() + ", at most " + maxBatchSize
+					+ " per request. Use POST /api/observations/status-jobs for larger sets.",
+				IssueType.TOOCOSTLY,
+				IssueSeverity.ERROR,
+				HttpStatus.BAD_REQUEST);
+		}
+		ourLog.info("Received /api/observations/finalize request for {}",
+			hasIds ? request.getIds().size() + " ids" : "query '" + request.getQuery() + "'");
 
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
 		try {
-			// При вызове myObservationDao.update() ваши интерцепторы (CustomFhirHook)
-			// будут автоматически вызваны и выполнят валидацию.
-			myObservationDao.update(observationToUpdate); // RequestDetails не нужен, HAPI его сам создаст/предоставит
-			ourLog.info("Observation {} successfully finalized.", id);
-			return ResponseEntity.ok(observationToUpdate); // Возвращаем обновленный ресурс
+			List<FinalizeResult> results = myTransactionService
+				.withRequest(requestDetails)
+				.execute(() -> finalizeInTransaction(request, maxBatchSize, requestDetails));
+
+			Map<String, Object> summary = new LinkedHashMap<>();
+			summary.put("total", results.size());
+			summary.put("finalized", results.stream().filter(r -> FinalizeResult.FINALIZED.equals(r.getResult())).count());
+			summary.put("results", results);
+			return ResponseEntity.ok(summary);
+		} catch (InvalidRequestException e) {
+			return createErrorResponse(e.getMessage(), IssueType.INVALID, IssueSeverity.ERROR, HttpStatus.BAD_REQUEST);
 		} catch (UnprocessableEntityException e) {
-			// Это исключения, брошенные вашим хуком (CustomFhirHook)
-			ourLog.error("Validation failed for Observation {}: {}", id, e.getMessage());
-			// Возвращаем OperationOutcome, который уже содержится в исключении HAPI FHIR
+			ourLog.error("Validation failed during batch finalize, nothing was changed: {}", e.getMessage());
 			return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(e.getOperationOutcome());
 		} catch (Exception e) {
-			ourLog.error("An unexpected error occurred while finalizing Observation {}: {}", id, e.getMessage(), e);
+			ourLog.error("Batch finalize failed, nothing was changed: {}", e.getMessage(), e);
 			return createErrorResponse(
-				"Failed to finalize Observation due to an internal error: " + e.getMessage(),
+				"Failed to finalize Observations due to an internal error, no changes were made: " + e.getMessage(),
 				IssueType.EXCEPTION,
 				IssueSeverity.FATAL,
 				HttpStatus.INTERNAL_SERVER_ERROR);
 		}
 	}
 
+	private List<FinalizeResult> finalizeInTransaction(
+		FinalizeRequest request, int maxBatchSize, SystemRequestDetails requestDetails) {
+		SearchParameterMap searchMap;
+		Set<String> requestedIds = new LinkedHashSet<>();
+		if (request.getIds() != null && !request.getIds().isEmpty()) {
+			for (String id : request.getIds()) {
+				// Принимаем и "123", и "Observation/123"
+				requestedIds.add(new IdType(id).getIdPart());
+			}
+			searchMap = SearchParameterMap.newSynchronous();
+			searchMap.add(IAnyResource.SP_RES_ID, new TokenOrListParam(null, requestedIds.toArray(new String[0])));
+		} else {
+			// Допускаем и "status=preliminary", и "Observation?status=preliminary"
+			String query = request.getQuery().trim();
+			query = query.substring(query.indexOf('?') + 1);
+			searchMap = myMatchUrlService.translateMatchUrl(
+				"Observation?" + query, myFhirContext.getResourceDefinition("Observation"));
+			// На один больше лимита - чтобы отличить "ровно лимит" от "больше лимита"
+			searchMap.setLoadSynchronousUpTo(maxBatchSize + 1);
+		}
+
+		Map<String, Observation> found = new LinkedHashMap<>();
+		for (Observation observation : myObservationDao.searchForResources(searchMap, requestDetails)) {
+			found.put(observation.getIdElement().getIdPart(), observation);
+		}
+		if (requestedIds.isEmpty()) {
+			if (found.size() > maxBatchSize) {
+				throw new InvalidRequestException(
+					"Query matches more than " + maxBatchSize
+						+ " Observations, narrow it down or use POST /api/observations/status-jobs.");
+			}
+			requestedIds.addAll(found.keySet());
+		}
+
+		List<FinalizeResult> results = new ArrayList<>(requestedIds.size());
+		for (String id : requestedIds) {
+			Observation observation = found.get(id);
+			if (observation == null) {
+				results.add(new FinalizeResult(id, FinalizeResult.NOT_FOUND, null));
+				continue;
+			}
+			Optional<String> currentStatus = getObservationStatusFromHook(observation);
+			if (currentStatus.isPresent() && "final".equalsIgnoreCase(currentStatus.get())) {
+				results.add(new FinalizeResult(id, FinalizeResult.ALREADY_FINAL, observation.getIdElement().getVersionIdPart()));
+				continue;
+			}
+			if (currentStatus.isPresent() && !"preliminary".equalsIgnoreCase(currentStatus.get())) {
+				results.add(new FinalizeResult(id, FinalizeResult.INVALID_STATUS, observation.getIdElement().getVersionIdPart()));
+				continue;
+			}
+
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			DaoMethodOutcome outcome = myObservationDao.update(observation, requestDetails);
+			results.add(new FinalizeResult(id, FinalizeResult.FINALIZED, outcome.getId().getVersionIdPart()));
+		}
+		ourLog.info("Finalized {} of {} Observations in one transaction",
+			results.stream().filter(r -> FinalizeResult.FINALIZED.equals(r.getResult())).count(), results.size());
+		return results;
+	}
+
+	/**
+	 * Запуск Batch2 задания массовой смены статуса Observation - для наборов, которые не помещаются
+	 * в одну транзакцию POST /api/observations/finalize (сотни тысяч ресурсов).
+	 *
+	 * Пример вызова:
+	 * POST http://localhost:8080/api/observations/status-jobs
+	 * Content-Type: application/json
+	 * {
+	 *   "query": "status=preliminary&date=lt2024-01-01",
+	 *   "status": "final",
+	 *   "fromStatus": ["preliminary"]
+	 * }
+	 *
+	 * Ход выполнения и отмена - через GET/DELETE /control/jobs.
+	 *
+	 * @return 202 и идентификатор экземпляра задания
+	 */
+	@PostMapping("/status-jobs")
+	public ResponseEntity<?> startStatusJob(@RequestBody StatusJobRequest request) {
+		if (request == null || request.getQuery() == null || request.getQuery().isBlank()) {
+			return createErrorResponse(
+				"'query' must be specified.",
+				IssueType.REQUIRED,
+				IssueSeverity.ERROR,
+				HttpStatus.BAD_REQUEST);
+		}
+
+		String query = request.getQuery().trim();
+		query = query.substring(query.indexOf('?') + 1);
+		ObservationStatusJobParameters parameters = new ObservationStatusJobParameters()
+			.setTargetStatus(request.getStatus() != null ? request.getStatus() : "final")
+			.setFromStatuses(request.getFromStatus() != null ? request.getFromStatus() : List.of("preliminary"));
+		parameters.addUrl("Observation?" + query);
+
+		JobInstanceStartRequest startRequest = new JobInstanceStartRequest();
+		startRequest.setJobDefinitionId(ObservationStatusJobConfig.JOB_OBSERVATION_STATUS);
+		startRequest.setParameters(parameters);
+		try {
+			Batch2JobStartResponse response = myJobCoordinator.startInstance(new SystemRequestDetails(), startRequest);
+			ourLog.info("Started Observation status job {} for query '{}'", response.getInstanceId(), query);
+
+			Map<String, Object> body = new LinkedHashMap<>();
+			body.put("instanceId", response.getInstanceId());
+			body.put("jobDefinitionId", ObservationStatusJobConfig.JOB_OBSERVATION_STATUS);
+			return ResponseEntity.status(HttpStatus.ACCEPTED).body(body);
+		} catch (InvalidRequestException e) {
+			return createErrorResponse(e.getMessage(), IssueType.INVALID, IssueSeverity.ERROR, HttpStatus.BAD_REQUEST);
+		}
+	}
+
 	// Вспомогательный метод для получения статуса, используем метод из CustomFhirHook
 	private Optional<String> getObservationStatusFromHook(IBaseResource observation) {
 		try {
@@ -145,4 +419,90 @@ public class ObservationManagementController {
 			.setDiagnostics(message);
 		return ResponseEntity.status(httpStatus).body(outcome);
 	}
-}
\ No newline at end of file
+
+	// Тело запроса POST /api/observations/finalize
+	public static class FinalizeRequest {
+		private List<String> ids;
+		private String query;
+
+		public List<String> getIds() {
+			return ids;
+		}
+
+		public void setIds(List<String> ids) {
+			this.ids = ids;
+		}
+
+		public String getQuery() {
+			return query;
+		}
+
+		public void setQuery(String query) {
+			this.query = query;
+		}
+	}
+
+	// Тело запроса POST /api/observations/status-jobs
+	public static class StatusJobRequest {
+		private String query;
+		private String status;
+		private List<String> fromStatus;
+
+		public String getQuery() {
+			return query;
+		}
+
+		public void setQuery(String query) {
+			this.query = query;
+		}
+
+		// Целевой статус, по умолчанию final
+		public String getStatus() {
+			return status;
+		}
+
+		public void setStatus(String status) {
+			this.status = status;
+		}
+
+		// Из каких статусов разрешён переход, по умолчанию только preliminary
+		public List<String> getFromStatus() {
+			return fromStatus;
+		}
+
+		public void setFromStatus(List<String> fromStatus) {
+			this.fromStatus = fromStatus;
+		}
+	}
+
+	// Итог по одному Observation в ответе POST /api/observations/finalize
+	public static class FinalizeResult {
+		static final String FINALIZED = "finalized";
+		static final String NOT_FOUND = "not-found";
+		static final String ALREADY_FINAL = "already-final";
+		static final String INVALID_STATUS = "invalid-status";
+
+		private final String id;
+		private final String result;
+		private final String version;
+
+		FinalizeResult(String id, String result, String version) {
+			this.id = id;
+			this.result = result;
+			this.version = version;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getResult() {
+			return result;
+		}
+
+		// Версия ресурса после обработки
+		public String getVersion() {
+			return version;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "hapi.fhir.custom.observations")
+public class ObservationProperties {
+
+	// Максимум Observation в одном запросе POST /api/observations/finalize (все обновляются одной транзакцией)
+	private Integer finalize_max_batch_size = 1000;
+	// Сколько раз повторять POST /api/observations/{id}/finalize без If-Match при конфликте версий
+	private Integer finalize_max_retries = 3;
+
+	public Integer getFinalize_max_batch_size() {
+		return finalize_max_batch_size;
+	}
+
+	public void setFinalize_max_batch_size(Integer finalize_max_batch_size) {
+		this.finalize_max_batch_size = finalize_max_batch_size;
+	}
+
+	public Integer getFinalize_max_retries() {
+		return finalize_max_retries;
+	}
+
+	public void setFinalize_max_retries(Integer finalize_max_retries) {
+		this.finalize_max_retries = finalize_max_retries;
+	}
+}
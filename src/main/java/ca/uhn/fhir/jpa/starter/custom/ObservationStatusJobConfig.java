@@ -0,0 +1,93 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import ca.uhn.fhir.batch2.api.IJobParametersValidator;
+import ca.uhn.fhir.batch2.jobs.chunk.ChunkRangeJson;
+import ca.uhn.fhir.batch2.jobs.chunk.ResourceIdListWorkChunkJson;
+import ca.uhn.fhir.batch2.jobs.parameters.PartitionedUrl;
+import ca.uhn.fhir.batch2.jobs.step.GenerateRangeChunksStep;
+import ca.uhn.fhir.batch2.jobs.step.LoadIdsStep;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.svc.IBatch2DaoSvc;
+import ca.uhn.fhir.jpa.api.svc.IIdHelperService;
+import ca.uhn.fhir.jpa.dao.tx.IHapiTransactionService;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.annotations.OnR4Condition;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Observation;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch2 задание массовой смены статуса Observation (например, preliminary -> final или -> cancelled).
+ * <p>
+ * Устроено так же, как задания из {@link ca.uhn.fhir.batch2.jobs.config.Batch2JobsConfig} (reindex, delete-expunge):
+ * url поиска разбивается на диапазоны, диапазоны - на чанки идентификаторов, а чанки обрабатываются
+ * параллельно всеми обработчиками Batch2 на всех узлах. Состояние хранится в таблицах Batch2, поэтому задание
+ * продолжается после перезапуска, а список и отмена доступны через {@code /control/jobs}.
+ */
+@Configuration
+@Conditional(OnR4Condition.class)
+public class ObservationStatusJobConfig {
+	public static final String JOB_OBSERVATION_STATUS = "observation-status-transition";
+
+	@Bean
+	public JobDefinition<ObservationStatusJobParameters> observationStatusJobDefinition(
+			IBatch2DaoSvc theBatch2DaoSvc, ObservationStatusStep theObservationStatusStep) {
+		return JobDefinition.newBuilder()
+				.setJobDefinitionId(JOB_OBSERVATION_STATUS)
+				.setJobDescription("Change the status of matching Observations")
+				.setJobDefinitionVersion(1)
+				.setParametersType(ObservationStatusJobParameters.class)
+				.setParametersValidator(observationStatusJobParametersValidator())
+				.addFirstStep(
+						"generate-ranges",
+						"Generate data ranges of Observations to update",
+						ChunkRangeJson.class,
+						new GenerateRangeChunksStep<ObservationStatusJobParameters>())
+				.addIntermediateStep(
+						"load-ids",
+						"Load IDs of Observations to update",
+						ResourceIdListWorkChunkJson.class,
+						new LoadIdsStep<ObservationStatusJobParameters>(theBatch2DaoSvc))
+				.addLastStep("change-status", "Change the status of one chunk of Observations", theObservationStatusStep)
+				.build();
+	}
+
+	@Bean
+	public ObservationStatusStep observationStatusStep(
+			IFhirResourceDao<Observation> theObservationDao,
+			IHapiTransactionService theTransactionService,
+			IIdHelperService<JpaPid> theIdHelperService) {
+		return new ObservationStatusStep(theObservationDao, theTransactionService, theIdHelperService);
+	}
+
+	private static IJobParametersValidator<ObservationStatusJobParameters> observationStatusJobParametersValidator() {
+		return (theRequestDetails, theParameters) -> {
+			List<String> errors = new ArrayList<>();
+			try {
+				if (Observation.ObservationStatus.fromCode(theParameters.getTargetStatus()) == null) {
+					errors.add("Target status is required");
+				}
+			} catch (FHIRException e) {
+				errors.add("Unknown Observation status: " + theParameters.getTargetStatus());
+			}
+			if (theParameters.getFromStatuses().isEmpty()) {
+				errors.add("At least one source status is required");
+			}
+			if (theParameters.getPartitionedUrls().isEmpty()) {
+				errors.add("A search url is required");
+			}
+			for (PartitionedUrl partitionedUrl : theParameters.getPartitionedUrls()) {
+				if (partitionedUrl.getUrl() == null || !partitionedUrl.getUrl().startsWith("Observation?")) {
+					errors.add("Search url must start with 'Observation?': " + partitionedUrl.getUrl());
+				}
+			}
+			return errors;
+		};
+	}
+}
@@ -0,0 +1,42 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import ca.uhn.fhir.batch2.jobs.parameters.PartitionedUrlJobParameters;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Параметры задания {@link ObservationStatusJobConfig#JOB_OBSERVATION_STATUS}: какие Observation (url поиска),
+ * в какой статус переводить и из каких статусов это разрешено.
+ * Сохраняются в БД вместе с экземпляром задания, поэтому после перезапуска задание продолжается с теми же параметрами.
+ */
+public class ObservationStatusJobParameters extends PartitionedUrlJobParameters {
+
+	@JsonProperty("targetStatus")
+	private String myTargetStatus;
+
+	@JsonProperty("fromStatus")
+	private List<String> myFromStatuses;
+
+	public String getTargetStatus() {
+		return myTargetStatus;
+	}
+
+	public ObservationStatusJobParameters setTargetStatus(String theTargetStatus) {
+		myTargetStatus = theTargetStatus;
+		return this;
+	}
+
+	public List<String> getFromStatuses() {
+		if (myFromStatuses == null) {
+			myFromStatuses = new ArrayList<>();
+		}
+		return myFromStatuses;
+	}
+
+	public ObservationStatusJobParameters setFromStatuses(List<String> theFromStatuses) {
+		myFromStatuses = theFromStatuses;
+		return this;
+	}
+}
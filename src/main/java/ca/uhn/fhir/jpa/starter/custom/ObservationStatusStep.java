@@ -0,0 +1,83 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.ILastJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.batch2.jobs.chunk.ResourceIdListWorkChunkJson;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.svc.IIdHelperService;
+import ca.uhn.fhir.jpa.dao.tx.IHapiTransactionService;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import org.hl7.fhir.r4.model.Observation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Последний шаг задания: меняет статус Observation из одного чанка идентификаторов в одной транзакции.
+ * <p>
+ * Шаг идемпотентен - Observation, уже не находящиеся в одном из исходных статусов, пропускаются.
+ * Поэтому чанк, прерванный падением узла, можно безопасно выполнить повторно.
+ */
+public class ObservationStatusStep
+		implements ILastJobStepWorker<ObservationStatusJobParameters, ResourceIdListWorkChunkJson> {
+	private static final Logger ourLog = LoggerFactory.getLogger(ObservationStatusStep.class);
+
+	private final IFhirResourceDao<Observation> myObservationDao;
+	private final IHapiTransactionService myTransactionService;
+	private final IIdHelperService<JpaPid> myIdHelperService;
+
+	public ObservationStatusStep(
+			IFhirResourceDao<Observation> theObservationDao,
+			IHapiTransactionService theTransactionService,
+			IIdHelperService<JpaPid> theIdHelperService) {
+		myObservationDao = theObservationDao;
+		myTransactionService = theTransactionService;
+		myIdHelperService = theIdHelperService;
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<ObservationStatusJobParameters, ResourceIdListWorkChunkJson> theStepExecutionDetails,
+			IJobDataSink<VoidModel> theDataSink)
+			throws JobExecutionFailedException {
+		ObservationStatusJobParameters parameters = theStepExecutionDetails.getParameters();
+		ResourceIdListWorkChunkJson data = theStepExecutionDetails.getData();
+		Observation.ObservationStatus targetStatus = Observation.ObservationStatus.fromCode(parameters.getTargetStatus());
+
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setRequestPartitionId(data.getRequestPartitionId());
+		int changed = myTransactionService
+				.withRequest(requestDetails)
+				.withRequestPartitionId(data.getRequestPartitionId())
+				.execute(() -> {
+					List<JpaPid> pids = data.getResourcePersistentIds(myIdHelperService);
+					int count = 0;
+					for (JpaPid pid : pids) {
+						Observation observation = myObservationDao.readByPid(pid);
+						String status = observation.hasStatus() ? observation.getStatusElement().getValueAsString() : null;
+						if (status == null || !parameters.getFromStatuses().contains(status)) {
+							continue;
+						}
+						observation.setStatus(targetStatus);
+						myObservationDao.update(observation, requestDetails);
+						count++;
+					}
+					return count;
+				});
+
+		ourLog.info(
+				"Job {} chunk {}: set status '{}' on {} of {} Observations",
+				theStepExecutionDetails.getInstance().getInstanceId(),
+				theStepExecutionDetails.getChunkId(),
+				targetStatus.toCode(),
+				changed,
+				data.size());
+		return new RunOutcome(changed);
+	}
+}
@@ -5,20 +5,40 @@ import ca.uhn.fhir.batch2.api.JobOperationResultJson;
 import ca.uhn.fhir.batch2.model.JobInstance;
 import ca.uhn.fhir.batch2.model.StatusEnum;
 import ca.uhn.fhir.batch2.models.JobInstanceFetchRequest;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.constraints.Min;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.DateTimeException;
+import java.time.Instant;
 import java.util.List;
 
 @RestController
 @RequestMapping("control")
 public class JobController {
 	private final IJobCoordinator theJobCoordinator;
+	private final JobInstanceCursorQuery theJobInstanceCursorQuery;
+	private final ObjectMapper theObjectMapper;
+	private final JobProgressBroadcaster theJobProgressBroadcaster;
 
-	public JobController(IJobCoordinator theJobCoordinator) {
+	public JobController(
+			IJobCoordinator theJobCoordinator,
+			JobInstanceCursorQuery theJobInstanceCursorQuery,
+			ObjectMapper theObjectMapper,
+			JobProgressBroadcaster theJobProgressBroadcaster) {
 		this.theJobCoordinator = theJobCoordinator;
+		this.theJobInstanceCursorQuery = theJobInstanceCursorQuery;
+		this.theObjectMapper = theObjectMapper;
+		this.theJobProgressBroadcaster = theJobProgressBroadcaster;
 	}
 
 	@RequestMapping(value = JobController.JOBS, method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -35,6 +55,72 @@ public class JobController {
 		return theJobCoordinator.fetchAllJobInstances(jobInstanceFetchRequest).getContent();
 	}
 
+	/**
+	 * Cursor-paged variant of {@link #getAllJobs}, used when {@code pageStart} is not given. Jobs are written to the
+	 * response as they are read, newest first, as {@code {"jobs": [...], "next": "<createTime>,<id>"}}; pass
+	 * {@code next} back as {@code after} to get the following page ({@code next} is null on the last page).
+	 */
+	@RequestMapping(
+			value = JobController.JOBS,
+			method = RequestMethod.GET,
+			params = "!pageStart",
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public void streamJobs(
+			@RequestParam(name = "after", required = false) String after,
+			@RequestParam(name = "batchSize", defaultValue = "100") @Min(1) int batchSize,
+			@RequestParam(name = "jobStatus", required = false) StatusEnum jobStatus,
+			@RequestParam(name = "jobDefinitionId", required = false) String jobDefinitionId,
+			@RequestParam(name = "from", required = false) String from,
+			@RequestParam(name = "to", required = false) String to,
+			HttpServletResponse response)
+			throws IOException {
+		JobInstanceCursorQuery.Cursor cursor;
+		JobInstanceCursorQuery.Filter filter;
+		try {
+			cursor = after != null ? JobInstanceCursorQuery.Cursor.parse(after) : null;
+			filter = new JobInstanceCursorQuery.Filter(
+					jobDefinitionId,
+					jobStatus,
+					from != null ? Instant.parse(from) : null,
+					to != null ? Instant.parse(to) : null);
+		} catch (IllegalArgumentException | DateTimeException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+		int limit = Math.min(batchSize, MAX_BATCH_SIZE);
+
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		try (JsonGenerator generator = theObjectMapper.getFactory().createGenerator(response.getOutputStream())) {
+			generator.writeStartObject();
+			generator.writeArrayFieldStart("jobs");
+			int[] count = new int[1];
+			JobInstanceCursorQuery.Cursor last = theJobInstanceCursorQuery.forEach(filter, cursor, limit, instance -> {
+				try {
+					theObjectMapper.writeValue(generator, instance);
+					count[0]++;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			generator.writeEndArray();
+			generator.writeStringField("next", last != null && count[0] == limit ? last.toString() : null);
+			generator.writeEndObject();
+		}
+	}
+
+	/**
+	 * Server-sent events with the state of running jobs: one {@code job} event per instance on connect, then one per
+	 * status or progress change. All subscribers share a single poll of the job table.
+	 */
+	@RequestMapping(
+			value = JobController.JOBS_EVENTS,
+			method = RequestMethod.GET,
+			produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public SseEmitter streamJobEvents(
+			@RequestParam(name = "instanceId", required = false) String instanceId,
+			@RequestParam(name = "jobDefinitionId", required = false) String jobDefinitionId) {
+		return theJobProgressBroadcaster.subscribe(instanceId, jobDefinitionId);
+	}
+
 	@RequestMapping(
 			value = JobController.JOBS,
 			method = RequestMethod.DELETE,
@@ -44,5 +130,7 @@ public class JobController {
 	}
 
 	public static final String JOBS = "jobs";
+	public static final String JOBS_EVENTS = "jobs/events";
 	public static final String MY_CREATE_TIME = "myCreateTime";
+	public static final int MAX_BATCH_SIZE = 1000;
 }
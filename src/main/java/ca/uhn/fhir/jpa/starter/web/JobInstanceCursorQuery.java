@@ -0,0 +1,187 @@
+package ca.uhn.fhir.jpa.starter.web;
+
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.jpa.batch2.JobInstanceUtil;
+import ca.uhn.fhir.jpa.entity.Batch2JobInstanceEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.TypedQuery;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Keyset (cursor) paging over the Batch2 job instance table, newest first.
+ * <p>
+ * Unlike {@link ca.uhn.fhir.batch2.api.IJobCoordinator#fetchAllJobInstances} the cost of a page does not depend on
+ * how deep it is: the cursor is the {@code (createTime, id)} of the last row already seen, and rows are handed to the
+ * caller one by one while the result set is still open instead of being collected into a list.
+ * <p>
+ * Also serves the single poll behind {@link JobProgressBroadcaster}.
+ */
+@Component
+public class JobInstanceCursorQuery {
+	private static final int FETCH_SIZE = 100;
+
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	private final TransactionTemplate myTxTemplate;
+
+	public JobInstanceCursorQuery(PlatformTransactionManager theTransactionManager) {
+		myTxTemplate = new TransactionTemplate(theTransactionManager);
+		myTxTemplate.setReadOnly(true);
+	}
+
+	/**
+	 * @return the cursor of the last instance passed to the consumer, or {@code null} if there were none
+	 */
+	public Cursor forEach(Filter theFilter, Cursor theAfter, int theLimit, Consumer<JobInstance> theConsumer) {
+		return myTxTemplate.execute(status -> {
+			TypedQuery<Batch2JobInstanceEntity> query = buildQuery(theFilter, theAfter);
+			query.setMaxResults(theLimit);
+			query.setHint("org.hibernate.fetchSize", Math.min(theLimit, FETCH_SIZE));
+
+			Cursor last = null;
+			try (Stream<Batch2JobInstanceEntity> entities = query.getResultStream()) {
+				for (Batch2JobInstanceEntity entity : (Iterable<Batch2JobInstanceEntity>) entities::iterator) {
+					theConsumer.accept(JobInstanceUtil.fromEntityToInstance(entity));
+					last = new Cursor(entity.getCreateTime().toInstant(), entity.getId());
+					// Rows already written are not needed any more
+					myEntityManager.detach(entity);
+				}
+			}
+			return last;
+		});
+	}
+
+	/**
+	 * Passes every instance that is still running or has been updated since the given time to the consumer.
+	 */
+	public void forEachActiveOrUpdatedSince(Date theSince, Consumer<JobInstance> theConsumer) {
+		myTxTemplate.executeWithoutResult(status -> {
+			TypedQuery<Batch2JobInstanceEntity> query = myEntityManager.createQuery(
+					"SELECT e FROM Batch2JobInstanceEntity e WHERE e.myStatus IN :active OR e.myUpdateTime >= :since",
+					Batch2JobInstanceEntity.class);
+			query.setParameter("active", StatusEnum.getIncompleteStatuses());
+			query.setParameter("since", theSince);
+			query.setHint("org.hibernate.fetchSize", FETCH_SIZE);
+			try (Stream<Batch2JobInstanceEntity> entities = query.getResultStream()) {
+				entities.forEach(entity -> {
+					theConsumer.accept(JobInstanceUtil.fromEntityToInstance(entity));
+					myEntityManager.detach(entity);
+				});
+			}
+		});
+	}
+
+	private TypedQuery<Batch2JobInstanceEntity> buildQuery(Filter theFilter, Cursor theAfter) {
+		StringBuilder jpql = new StringBuilder("SELECT e FROM Batch2JobInstanceEntity e WHERE 1 = 1");
+		if (theFilter.getDefinitionId() != null) {
+			jpql.append(" AND e.myDefinitionId = :definitionId");
+		}
+		if (theFilter.getStatus() != null) {
+			jpql.append(" AND e.myStatus = :status");
+		}
+		if (theFilter.getFrom() != null) {
+			jpql.append(" AND e.myCreateTime >= :from");
+		}
+		if (theFilter.getTo() != null) {
+			jpql.append(" AND e.myCreateTime < :to");
+		}
+		if (theAfter != null) {
+			jpql.append(" AND (e.myCreateTime < :afterTime OR (e.myCreateTime = :afterTime AND e.myId < :afterId))");
+		}
+		jpql.append(" ORDER BY e.myCreateTime DESC, e.myId DESC");
+
+		TypedQuery<Batch2JobInstanceEntity> query =
+				myEntityManager.createQuery(jpql.toString(), Batch2JobInstanceEntity.class);
+		if (theFilter.getDefinitionId() != null) {
+			query.setParameter("definitionId", theFilter.getDefinitionId());
+		}
+		if (theFilter.getStatus() != null) {
+			query.setParameter("status", theFilter.getStatus());
+		}
+		if (theFilter.getFrom() != null) {
+			query.setParameter("from", Date.from(theFilter.getFrom()));
+		}
+		if (theFilter.getTo() != null) {
+			query.setParameter("to", Date.from(theFilter.getTo()));
+		}
+		if (theAfter != null) {
+			query.setParameter("afterTime", Date.from(theAfter.getCreateTime()));
+			query.setParameter("afterId", theAfter.getId());
+		}
+		return query;
+	}
+
+	public static class Filter {
+		private final String myDefinitionId;
+		private final StatusEnum myStatus;
+		private final Instant myFrom;
+		private final Instant myTo;
+
+		public Filter(String theDefinitionId, StatusEnum theStatus, Instant theFrom, Instant theTo) {
+			myDefinitionId = theDefinitionId;
+			myStatus = theStatus;
+			myFrom = theFrom;
+			myTo = theTo;
+		}
+
+		public String getDefinitionId() {
+			return myDefinitionId;
+		}
+
+		public StatusEnum getStatus() {
+			return myStatus;
+		}
+
+		public Instant getFrom() {
+			return myFrom;
+		}
+
+		public Instant getTo() {
+			return myTo;
+		}
+	}
+
+	/**
+	 * Position in the listing, serialized as {@code <createTime>,<id>} with the time in ISO-8601.
+	 */
+	public static class Cursor {
+		private final Instant myCreateTime;
+		private final String myId;
+
+		public Cursor(Instant theCreateTime, String theId) {
+			myCreateTime = theCreateTime;
+			myId = theId;
+		}
+
+		public static Cursor parse(String theValue) {
+			int comma = theValue.indexOf(',');
+			if (comma <= 0 || comma == theValue.length() - 1) {
+				throw new IllegalArgumentException("Cursor must be <createTime>,<id>: " + theValue);
+			}
+			return new Cursor(Instant.parse(theValue.substring(0, comma)), theValue.substring(comma + 1));
+		}
+
+		public Instant getCreateTime() {
+			return myCreateTime;
+		}
+
+		public String getId() {
+			return myId;
+		}
+
+		@Override
+		public String toString() {
+			return myCreateTime + "," + myId;
+		}
+	}
+}
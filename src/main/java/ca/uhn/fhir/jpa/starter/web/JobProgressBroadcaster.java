@@ -0,0 +1,192 @@
+package ca.uhn.fhir.jpa.starter.web;
+
+import ca.uhn.fhir.batch2.model.JobInstance;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes Batch2 job state changes to server-sent event subscribers.
+ * <p>
+ * A single background poll reads the running and recently updated job instances and sends an event to every
+ * matching subscriber only when a job's status or progress counters changed, so the database is queried once per
+ * interval no matter how many dashboards are connected (and not at all while nobody is).
+ */
+@Component
+public class JobProgressBroadcaster {
+	private static final Logger ourLog = LoggerFactory.getLogger(JobProgressBroadcaster.class);
+
+	public static final String EVENT_JOB = "job";
+	// Subscribers are closed after this long, SSE clients reconnect on their own
+	private static final long EMITTER_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	// Comment line sent every N idle polls, so dead connections are noticed and dropped
+	private static final int HEARTBEAT_EVERY_POLLS = 10;
+	// Overlap between polls so updates committed while the previous poll ran are not missed
+	private static final long POLL_OVERLAP_MILLIS = 1000;
+
+	private final JobInstanceCursorQuery myJobInstanceQuery;
+	private final List<Subscriber> mySubscribers = new CopyOnWriteArrayList<>();
+	// Last state sent for every job returned by the previous poll
+	private final Map<String, Map<String, Object>> myLastStates = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService myExecutor;
+	private long myLastPollTime = System.currentTimeMillis();
+	private int myIdlePolls;
+
+	public JobProgressBroadcaster(
+			JobInstanceCursorQuery theJobInstanceQuery,
+			@Value("${hapi.fhir.batch2_progress_poll_millis:2000}") long thePollMillis) {
+		myJobInstanceQuery = theJobInstanceQuery;
+		myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "batch2-progress-poll");
+			thread.setDaemon(true);
+			return thread;
+		});
+		myExecutor.scheduleWithFixedDelay(this::poll, thePollMillis, thePollMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param theInstanceId      only events of this job instance, or all if null
+	 * @param theJobDefinitionId only events of jobs of this definition, or all if null
+	 */
+	public SseEmitter subscribe(String theInstanceId, String theJobDefinitionId) {
+		SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MILLIS);
+		Subscriber subscriber = new Subscriber(emitter, theInstanceId, theJobDefinitionId);
+		emitter.onCompletion(() -> mySubscribers.remove(subscriber));
+		emitter.onTimeout(() -> mySubscribers.remove(subscriber));
+		emitter.onError(e -> mySubscribers.remove(subscriber));
+
+		// Current state of running and just finished jobs first, then only changes
+		for (Map<String, Object> state : myLastStates.values()) {
+			if (subscriber.matches(state) && !subscriber.send(state)) {
+				return emitter;
+			}
+		}
+		mySubscribers.add(subscriber);
+		return emitter;
+	}
+
+	void poll() {
+		if (mySubscribers.isEmpty()) {
+			myLastStates.clear();
+			myLastPollTime = System.currentTimeMillis();
+			return;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			Date since = new Date(myLastPollTime - POLL_OVERLAP_MILLIS);
+			boolean[] changed = new boolean[1];
+			Set<String> seen = new HashSet<>();
+			myJobInstanceQuery.forEachActiveOrUpdatedSince(since, instance -> {
+				Map<String, Object> state = toState(instance);
+				seen.add(instance.getInstanceId());
+				if (!Objects.equals(myLastStates.put(instance.getInstanceId(), state), state)) {
+					broadcast(state);
+					changed[0] = true;
+				}
+			});
+			// Finished jobs fall out of the poll once their last update is older than the window
+			myLastStates.keySet().retainAll(seen);
+			myLastPollTime = now;
+
+			if (!changed[0] && ++myIdlePolls >= HEARTBEAT_EVERY_POLLS) {
+				myIdlePolls = 0;
+				for (Subscriber subscriber : mySubscribers) {
+					if (!subscriber.heartbeat()) {
+						mySubscribers.remove(subscriber);
+					}
+				}
+			} else if (changed[0]) {
+				myIdlePolls = 0;
+			}
+		} catch (Exception e) {
+			ourLog.warn("Failed to poll Batch2 job progress: {}", e.getMessage());
+		}
+	}
+
+	private void broadcast(Map<String, Object> theState) {
+		for (Subscriber subscriber : mySubscribers) {
+			if (subscriber.matches(theState) && !subscriber.send(theState)) {
+				mySubscribers.remove(subscriber);
+			}
+		}
+	}
+
+	private static Map<String, Object> toState(JobInstance theInstance) {
+		Map<String, Object> state = new LinkedHashMap<>();
+		state.put("instanceId", theInstance.getInstanceId());
+		state.put("jobDefinitionId", theInstance.getJobDefinitionId());
+		state.put("status", theInstance.getStatus());
+		state.put("currentGatedStepId", theInstance.getCurrentGatedStepId());
+		state.put("progress", theInstance.getProgress());
+		state.put("combinedRecordsProcessed", theInstance.getCombinedRecordsProcessed());
+		state.put("errorCount", theInstance.getErrorCount());
+		state.put("errorMessage", theInstance.getErrorMessage());
+		state.put("estimatedTimeRemaining", theInstance.getEstimatedTimeRemaining());
+		return state;
+	}
+
+	@PreDestroy
+	public void stop() {
+		myExecutor.shutdownNow();
+		for (Subscriber subscriber : mySubscribers) {
+			subscriber.myEmitter.complete();
+		}
+	}
+
+	private static class Subscriber {
+		private final SseEmitter myEmitter;
+		private final String myInstanceId;
+		private final String myJobDefinitionId;
+
+		private Subscriber(SseEmitter theEmitter, String theInstanceId, String theJobDefinitionId) {
+			myEmitter = theEmitter;
+			myInstanceId = theInstanceId;
+			myJobDefinitionId = theJobDefinitionId;
+		}
+
+		private boolean matches(Map<String, Object> theState) {
+			return (myInstanceId == null || myInstanceId.equals(theState.get("instanceId")))
+					&& (myJobDefinitionId == null || myJobDefinitionId.equals(theState.get("jobDefinitionId")));
+		}
+
+		private boolean send(Map<String, Object> theState) {
+			try {
+				myEmitter.send(SseEmitter.event()
+						.name(EVENT_JOB)
+						.id(String.valueOf(theState.get("instanceId")))
+						.data(theState));
+				return true;
+			} catch (IOException | IllegalStateException e) {
+				myEmitter.completeWithError(e);
+				return false;
+			}
+		}
+
+		private boolean heartbeat() {
+			try {
+				myEmitter.send(SseEmitter.event().comment("heartbeat"));
+				return true;
+			} catch (IOException | IllegalStateException e) {
+				myEmitter.completeWithError(e);
+				return false;
+			}
+		}
+	}
+}
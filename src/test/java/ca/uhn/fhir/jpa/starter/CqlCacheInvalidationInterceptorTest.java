@@ -0,0 +1,126 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cr.CqlCacheInvalidationInterceptor;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.h2.jdbcx.JdbcDataSource;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Invalidation of compiled libraries and ValueSet expansions on Library/ValueSet writes.
+ */
+class CqlCacheInvalidationInterceptorTest {
+
+	private final Map<VersionedIdentifier, CompiledLibrary> libraryCache = new ConcurrentHashMap<>();
+	private final Map<String, List<Code>> valueSetCache = new ConcurrentHashMap<>();
+	private CqlCacheInvalidationInterceptor interceptor;
+
+	@BeforeEach
+	void setUp() {
+		interceptor = new CqlCacheInvalidationInterceptor(FhirContext.forR4Cached(), libraryCache, valueSetCache, null);
+		cacheLibrary("Common", "1.0.0");
+		cacheLibrary("Common", "2.0.0");
+		// Resolved by a versionless include
+		cacheLibrary("Common", null);
+		cacheLibrary("Main", "1.0.0");
+		valueSetCache.put("http://example.org/ValueSet/vs", List.of());
+		valueSetCache.put("http://example.org/ValueSet/vs|1.0", List.of());
+		valueSetCache.put("http://example.org/ValueSet/vs2", List.of());
+	}
+
+	@Test
+	void testLibraryVersion() {
+		interceptor.invalidate("Library|Common|1.0.0");
+
+		assertEquals(Set.of("Common|2.0.0", "Main|1.0.0"), cachedLibraries());
+	}
+
+	@Test
+	void testLibraryWithoutVersion() {
+		interceptor.invalidate("Library|Common|");
+
+		assertEquals(Set.of("Main|1.0.0"), cachedLibraries());
+	}
+
+	@Test
+	void testValueSetUrlAndVersions() {
+		interceptor.invalidate("ValueSet|http://example.org/ValueSet/vs");
+
+		assertEquals(Set.of("http://example.org/ValueSet/vs2"), valueSetCache.keySet());
+	}
+
+	@Test
+	void testUnknownPayloadIgnored() {
+		interceptor.invalidate("Library|Common");
+		interceptor.invalidate("Measure|x");
+		interceptor.invalidate("");
+
+		assertEquals(4, libraryCache.size());
+		assertEquals(3, valueSetCache.size());
+	}
+
+	@Test
+	void testInvalidatedAgainAfterCommit() {
+		TransactionTemplate transaction = transactionTemplate();
+
+		transaction.executeWithoutResult(status -> {
+			interceptor.resourceCreated(library("Main", "1.0.0"));
+			assertEquals(Set.of("Common|1.0.0", "Common|2.0.0", "Common|null"), cachedLibraries());
+			// A concurrent evaluation compiles the version that is about to be replaced
+			cacheLibrary("Main", "1.0.0");
+		});
+
+		assertEquals(Set.of("Common|1.0.0", "Common|2.0.0", "Common|null"), cachedLibraries());
+	}
+
+	@Test
+	void testNotInvalidatedAgainAfterRollback() {
+		TransactionTemplate transaction = transactionTemplate();
+
+		transaction.executeWithoutResult(status -> {
+			interceptor.resourceUpdated(library("Main", "1.0.0"), library("Main", "1.0.0"));
+			cacheLibrary("Main", "1.0.0");
+			status.setRollbackOnly();
+		});
+
+		// The stored library did not change, its recompiled entry is kept
+		assertEquals(Set.of("Common|1.0.0", "Common|2.0.0", "Common|null", "Main|1.0.0"), cachedLibraries());
+	}
+
+	private static TransactionTemplate transactionTemplate() {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:cql-cache-invalidation");
+		return new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+	}
+
+	private void cacheLibrary(String theName, String theVersion) {
+		libraryCache.put(new VersionedIdentifier().withId(theName).withVersion(theVersion), new CompiledLibrary());
+	}
+
+	private Set<String> cachedLibraries() {
+		return libraryCache.keySet().stream()
+				.map(id -> id.getId() + "|" + id.getVersion())
+				.collect(Collectors.toSet());
+	}
+
+	private static Library library(String theName, String theVersion) {
+		Library library = new Library();
+		library.setName(theName);
+		library.setVersion(theVersion);
+		return library;
+	}
+}
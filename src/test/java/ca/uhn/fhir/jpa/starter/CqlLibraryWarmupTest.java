@@ -0,0 +1,169 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.cr.CqlLibraryWarmup;
+import ca.uhn.fhir.jpa.starter.cr.CqlProperties;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Startup compilation of stored CQL Libraries and the ELM disk cache.
+ */
+class CqlLibraryWarmupTest {
+	private static final String COMMON_1 = "library Common version '1.0.0'\n\ndefine \"Value\": 1\n";
+	private static final String COMMON_2 =
+			"library Common version '2.0.0'\n\ndefine \"Value\": 2\ndefine \"OnlyInTwo\": true\n";
+	private static final String COMMON_3 =
+			"library Common version '3.0.0'\n\ndefine \"Value\": 3\ndefine \"OnlyInTwo\": false\n";
+	// Compiles only against Common 2.0.0 or later
+	private static final String MAIN = "library Main version '1.0.0'\n\ninclude Common\n\n"
+			+ "define \"Result\": Common.\"OnlyInTwo\"\ndefine \"Marker\": 1\n";
+
+	@TempDir
+	Path elmCacheDir;
+
+	private final List<IBaseResource> libraries = new ArrayList<>();
+	private DaoRegistry daoRegistry;
+	private ExecutorService executor;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		IFhirResourceDao<IBaseResource> libraryDao = mock(IFhirResourceDao.class);
+		doAnswer(invocation -> new SimpleBundleProvider(new ArrayList<>(libraries)))
+				.when(libraryDao)
+				.search(any(SearchParameterMap.class), any(RequestDetails.class));
+		daoRegistry = mock(DaoRegistry.class);
+		doReturn(libraryDao).when(daoRegistry).getResourceDao("Library");
+		executor = Executors.newFixedThreadPool(2);
+
+		libraries.add(library("Common", "1.0.0", COMMON_1));
+		libraries.add(library("Common", "2.0.0", COMMON_2));
+		libraries.add(library("Main", "1.0.0", MAIN));
+	}
+
+	@AfterEach
+	void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void testCompilesAndWritesElm() throws IOException {
+		EvaluationSettings settings = warmup();
+
+		// Main only compiles if its versionless include resolved to the highest stored version
+		assertNotNull(compiled(settings, "Main"));
+		assertNotNull(compiled(settings, "Common"));
+		assertEquals(1, elmFiles("Main-1.0.0-").size());
+		assertEquals(1, elmFiles("Common-1.0.0-").size());
+		assertEquals(1, elmFiles("Common-2.0.0-").size());
+	}
+
+	@Test
+	void testReloadsElmOnNextStart() throws IOException {
+		warmup();
+		Path mainElm = elmFiles("Main-1.0.0-").get(0);
+		// Renamed in the ELM only, so the definition shows whether the library was read back or compiled again
+		Files.writeString(mainElm, Files.readString(mainElm).replace("\"Marker\"", "\"Reloaded\""));
+
+		EvaluationSettings settings = warmup();
+
+		List<String> definitions = compiled(settings, "Main").getLibrary().getStatements().getDef().stream()
+				.map(ExpressionDef::getName)
+				.toList();
+		assertTrue(definitions.contains("Reloaded"), definitions.toString());
+		assertEquals(1, elmFiles("Main-1.0.0-").size());
+	}
+
+	@Test
+	void testRecompilesWhenIncludeResolvesToNewVersion() throws IOException {
+		warmup();
+		Path mainElm = elmFiles("Main-1.0.0-").get(0);
+
+		libraries.add(library("Common", "3.0.0", COMMON_3));
+		warmup();
+
+		List<Path> mainElms = elmFiles("Main-1.0.0-");
+		assertEquals(2, mainElms.size());
+		assertTrue(mainElms.contains(mainElm));
+	}
+
+	@Test
+	void testRecompilesWhenIncludedLibraryChanges() throws IOException {
+		warmup();
+
+		libraries.set(1, library("Common", "2.0.0", COMMON_2 + "define \"Added\": 4\n"));
+		warmup();
+
+		assertEquals(2, elmFiles("Main-1.0.0-").size());
+		assertEquals(2, elmFiles("Common-2.0.0-").size());
+		assertEquals(1, elmFiles("Common-1.0.0-").size());
+	}
+
+	private EvaluationSettings warmup() {
+		// A fresh library cache, as after a restart
+		EvaluationSettings settings = EvaluationSettings.getDefault();
+		CqlProperties properties = new CqlProperties();
+		properties.setUse_embedded_libraries(false);
+		properties.getWarmup().setEnabled(true);
+		properties.getWarmup().setElm_cache_dir(elmCacheDir.toString());
+		new CqlLibraryWarmup(daoRegistry, FhirContext.forR4Cached(), settings, executor, properties).run(null);
+		return settings;
+	}
+
+	private static CompiledLibrary compiled(EvaluationSettings theSettings, String theName) {
+		return theSettings.getLibraryCache().entrySet().stream()
+				.filter(entry -> theName.equals(entry.getKey().getId()))
+				.map(Map.Entry::getValue)
+				.findFirst()
+				.orElse(null);
+	}
+
+	private List<Path> elmFiles(String thePrefix) throws IOException {
+		try (Stream<Path> files = Files.list(elmCacheDir)) {
+			return files.filter(file -> file.getFileName().toString().startsWith(thePrefix))
+					.filter(file -> file.getFileName().toString().endsWith(".json"))
+					.toList();
+		}
+	}
+
+	private static Library library(String theName, String theVersion, String theCql) {
+		Library library = new Library();
+		library.setId(theName + "-" + theVersion);
+		library.setName(theName);
+		library.setVersion(theVersion);
+		library.addContent().setContentType("text/cql").setData(theCql.getBytes(StandardCharsets.UTF_8));
+		return library;
+	}
+}
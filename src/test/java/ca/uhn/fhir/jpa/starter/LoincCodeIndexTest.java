@@ -0,0 +1,51 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.custom.LoincCodeIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoincCodeIndexTest {
+
+	@Test
+	void testPackedAndIrregularCodes() {
+		LoincCodeIndex index = LoincCodeIndex.of(List.of("1-8", "100000-9", "2345-7", "2345-7", "LP12345-6", "012-3"));
+
+		assertEquals(5, index.size());
+		assertTrue(index.contains("1-8"));
+		assertTrue(index.contains("100000-9"));
+		assertTrue(index.contains("2345-7"));
+		// Codes that do not fit the NNNNN-C shape go through the fallback set
+		assertTrue(index.contains("LP12345-6"));
+		assertTrue(index.contains("012-3"));
+
+		assertFalse(index.contains("100000-8"));
+		assertFalse(index.contains("12-3"));
+		assertFalse(index.contains("2345"));
+		assertFalse(index.contains(""));
+		assertFalse(index.contains(null));
+	}
+
+	@Test
+	void testUnits() {
+		LoincCodeIndex index = LoincCodeIndex.of(
+				List.of("2345-7", "8310-5", "LP12345-6", "1-8"),
+				Arrays.asList("mg/dL;mmol/L", "Cel", "mg/dL;mmol/L", null),
+				1,
+				System.currentTimeMillis());
+
+		assertEquals("mg/dL;mmol/L", index.getUnits("2345-7"));
+		assertEquals("Cel", index.getUnits("8310-5"));
+		assertEquals("mg/dL;mmol/L", index.getUnits("LP12345-6"));
+		assertNull(index.getUnits("1-8"));
+		assertNull(index.getUnits("100000-9"));
+		// Each distinct units string is stored once
+		assertEquals(List.of("mg/dL;mmol/L", "Cel"), index.getDistinctUnits());
+	}
+}
@@ -0,0 +1,146 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.custom.LoincCodeIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares LOINC code lookups: the packed {@link LoincCodeIndex}, a plain {@code HashSet<String>} and a
+ * per-code {@code select ... where code = ?} against an in-memory H2 table, which is the query
+ * {@code LoincRepository.findByCode} issues (minus Hibernate and network overhead, so the real cost is higher).
+ * <p>
+ * Not run as part of the build. Run from the project root with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=ca.uhn.fhir.jpa.starter.LoincLookupBenchmark}
+ * or from the IDE. The code list is read from {@code LOINC.csv} (override with {@code -Dloinc.csv=...}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoincLookupBenchmark {
+
+	private static final int PROBE_COUNT = 1024;
+
+	private LoincCodeIndex packedIndex;
+	private Set<String> hashSet;
+	private Connection connection;
+	private PreparedStatement findByCode;
+
+	// Half known codes, half codes with a wrong check digit (typos)
+	private String[] probes;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		List<String> codes = readCodes(Path.of(System.getProperty("loinc.csv", "LOINC.csv")));
+
+		packedIndex = LoincCodeIndex.of(codes);
+		hashSet = new HashSet<>(codes);
+
+		connection = DriverManager.getConnection("jdbc:h2:mem:loinc_bench");
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("create table loinc (code varchar(255) primary key, units varchar(255))");
+		}
+		try (PreparedStatement insert = connection.prepareStatement("insert into loinc (code) values (?)")) {
+			for (String code : codes) {
+				insert.setString(1, code);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		}
+		findByCode = connection.prepareStatement("select code, units from loinc where code = ?");
+
+		Random random = new Random(42);
+		probes = new String[PROBE_COUNT];
+		for (int i = 0; i < PROBE_COUNT; i++) {
+			String code = codes.get(random.nextInt(codes.size()));
+			if (i % 2 == 1) {
+				char check = code.charAt(code.length() - 1);
+				code = code.substring(0, code.length() - 1) + (char) ('0' + (check - '0' + 1) % 10);
+			}
+			// Separate String instances, like codes parsed from an incoming resource
+			probes[i] = new String(code.toCharArray());
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		findByCode.close();
+		connection.close();
+	}
+
+	private String nextProbe() {
+		String probe = probes[next];
+		next = (next + 1) & (PROBE_COUNT - 1);
+		return probe;
+	}
+
+	@Benchmark
+	public boolean packedIndex() {
+		return packedIndex.contains(nextProbe());
+	}
+
+	@Benchmark
+	public boolean hashSet() {
+		return hashSet.contains(nextProbe());
+	}
+
+	@Benchmark
+	public boolean repositoryQuery() throws Exception {
+		findByCode.setString(1, nextProbe());
+		try (ResultSet resultSet = findByCode.executeQuery()) {
+			return resultSet.next();
+		}
+	}
+
+	private static List<String> readCodes(Path theCsv) throws Exception {
+		List<String> codes = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(theCsv, StandardCharsets.UTF_8)) {
+			// skip header
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				int comma = line.indexOf(',');
+				codes.add(comma < 0 ? line : line.substring(0, comma));
+			}
+		}
+		return codes;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(LoincLookupBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,60 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.custom.LoincUnitValidator;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoincUnitValidatorTest {
+
+	private final LoincUnitValidator validator = new LoincUnitValidator();
+
+	@Test
+	void testLiteralMatch() {
+		assertTrue(validator.isCompatible("mg/dL", "mg/dL"));
+		// Not UCUM, but listed in the dictionary as is
+		assertTrue(validator.isCompatible("score", "score"));
+		assertFalse(validator.isCompatible("score", "points"));
+	}
+
+	@Test
+	void testCanonicalMatch() {
+		// mg/dL, g/L and mg/L are all mass concentrations
+		assertTrue(validator.isCompatible("mg/dL", "g/L"));
+		assertTrue(validator.isCompatible("mg/dL", "mg/L"));
+		assertTrue(validator.isCompatible("g/L", "ug/mL"));
+		// Volume and amount are not mass concentrations
+		assertFalse(validator.isCompatible("mg/dL", "mL"));
+		assertFalse(validator.isCompatible("mg/dL", "g"));
+	}
+
+	@Test
+	void testNonUcumInput() {
+		assertFalse(validator.isCompatible("mg/dL", "mg per dl"));
+		// Expected units that are not UCUM only match literally
+		assertFalse(validator.isCompatible("mg per dl", "mg/dL"));
+	}
+
+	@Test
+	void testSeparatedExpectedUnits() {
+		String expected = "mg/dL; mmol/L";
+		assertTrue(validator.isCompatible(expected, "mg/dL"));
+		assertTrue(validator.isCompatible(expected, "mmol/L"));
+		assertTrue(validator.isCompatible(expected, "g/L"));
+		assertTrue(validator.isCompatible(expected, "umol/L"));
+		assertFalse(validator.isCompatible(expected, "mL"));
+	}
+
+	@Test
+	void testPrecompileReplacesPreviousUnits() {
+		validator.precompile(List.of("mg/dL", "Cel"));
+		validator.precompile(List.of("mmol/L"));
+
+		// Units no longer in the dictionary are compiled again on demand, with the same result
+		assertTrue(validator.isCompatible("mg/dL", "g/L"));
+		assertTrue(validator.isCompatible("mmol/L", "umol/L"));
+	}
+}
@@ -0,0 +1,112 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.custom.IObservationFieldExtractor;
+import ca.uhn.fhir.jpa.starter.custom.ObservationFieldExtractorTerser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-Observation cost of extracting the LOINC code and status, as done by {@code CustomFhirHook} on every create:
+ * the previous reflective implementation, the R4 extractor and the {@code FhirTerser} fallback.
+ * <p>
+ * Not run as part of the build, run {@link #main(String[])} from the IDE or via {@code exec:java} with test scope.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObservationExtractionBenchmark {
+
+	private Observation observation;
+	private IObservationFieldExtractor r4Extractor;
+	private IObservationFieldExtractor terserExtractor;
+
+	@Setup
+	public void setUp() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		r4Extractor = IObservationFieldExtractor.forFhirContext(ctx);
+		terserExtractor = new ObservationFieldExtractorTerser(ctx);
+
+		// A typical lab result: a local code first, then the LOINC coding
+		observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.PRELIMINARY);
+		observation.getCode().addCoding().setSystem("http://acme.org/lab-codes").setCode("GLU");
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("2345-7");
+	}
+
+	@Benchmark
+	public void reflection(Blackhole theBlackhole) throws Exception {
+		theBlackhole.consume(reflectiveLoincCode(observation));
+		theBlackhole.consume(reflectiveStatus(observation));
+	}
+
+	@Benchmark
+	public void r4Extractor(Blackhole theBlackhole) {
+		theBlackhole.consume(r4Extractor.getLoincCode(observation));
+		theBlackhole.consume(r4Extractor.getStatus(observation));
+	}
+
+	@Benchmark
+	public void terserExtractor(Blackhole theBlackhole) {
+		theBlackhole.consume(terserExtractor.getLoincCode(observation));
+		theBlackhole.consume(terserExtractor.getStatus(observation));
+	}
+
+	// The implementation CustomFhirHook used before the extractors, kept here as the baseline
+	private static String reflectiveLoincCode(IBaseResource theObservation) throws Exception {
+		Object code = theObservation.getClass().getMethod("getCode").invoke(theObservation);
+		if (code == null) {
+			return null;
+		}
+		Object codingList = code.getClass().getMethod("getCoding").invoke(code);
+		if (!(codingList instanceof List)) {
+			return null;
+		}
+		for (Object coding : (List<?>) codingList) {
+			String system = (String) coding.getClass().getMethod("getSystem").invoke(coding);
+			if ("http://loinc.org".equals(system)) {
+				return (String) coding.getClass().getMethod("getCode").invoke(coding);
+			}
+		}
+		return null;
+	}
+
+	private static String reflectiveStatus(IBaseResource theObservation) throws Exception {
+		Object status = theObservation.getClass().getMethod("getStatus").invoke(theObservation);
+		if (status == null) {
+			return null;
+		}
+		try {
+			return (String) status.getClass().getMethod("getValue").invoke(status);
+		} catch (NoSuchMethodException e) {
+			return status.toString();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(ObservationExtractionBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
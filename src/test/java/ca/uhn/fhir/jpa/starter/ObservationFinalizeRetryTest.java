@@ -0,0 +1,98 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.starter.custom.ObservationManagementController;
+import ca.uhn.fhir.jpa.starter.custom.ObservationProperties;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * POST /api/observations/{id}/finalize when the Observation is modified concurrently.
+ */
+class ObservationFinalizeRetryTest {
+
+	private IFhirResourceDao<Observation> observationDao;
+	private ObservationManagementController controller;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		observationDao = mock(IFhirResourceDao.class);
+		ObservationProperties properties = new ObservationProperties();
+		properties.setFinalize_max_retries(2);
+
+		controller = new ObservationManagementController();
+		ReflectionTestUtils.setField(controller, "myObservationDao", observationDao);
+		ReflectionTestUtils.setField(controller, "observationProperties", properties);
+	}
+
+	@Test
+	void testRetriedWithoutIfMatch() {
+		when(patch()).thenThrow(new ResourceVersionConflictException("conflict")).thenReturn(finalized());
+
+		ResponseEntity<?> response = controller.finalizeObservation("1", null, null, null);
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals("W/\"3\"", response.getHeaders().getETag());
+		verify(observationDao, times(2)).patch(any(IIdType.class), isNull(), any(), any(), isNull(), any(RequestDetails.class));
+	}
+
+	@Test
+	void testConflictAfterRetries() {
+		when(patch()).thenThrow(new ResourceVersionConflictException("conflict"));
+
+		ResponseEntity<?> response = controller.finalizeObservation("1", null, null, null);
+
+		assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+		// The first attempt and two retries
+		verify(observationDao, times(3)).patch(any(IIdType.class), isNull(), any(), any(), isNull(), any(RequestDetails.class));
+	}
+
+	@Test
+	void testNotRetriedWithIfMatch() {
+		when(patch()).thenThrow(new ResourceVersionConflictException("conflict"));
+
+		ResponseEntity<?> response = controller.finalizeObservation("1", null, "W/\"2\"", null);
+
+		assertEquals(HttpStatus.PRECONDITION_FAILED, response.getStatusCode());
+		verify(observationDao, times(1))
+				.patch(
+						argThat(id -> "2".equals(id.getVersionIdPart())),
+						isNull(),
+						any(),
+						any(),
+						isNull(),
+						any(RequestDetails.class));
+	}
+
+	private DaoMethodOutcome patch() {
+		return observationDao.patch(any(IIdType.class), isNull(), any(), any(), isNull(), any(RequestDetails.class));
+	}
+
+	private static DaoMethodOutcome finalized() {
+		Observation observation = new Observation();
+		observation.setId("Observation/1/_history/3");
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		DaoMethodOutcome outcome = new DaoMethodOutcome();
+		outcome.setId(observation.getIdElement());
+		outcome.setResource(observation);
+		return outcome;
+	}
+}
@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.searchparam.config.NicknameServiceConfig;
+import ca.uhn.fhir.jpa.starter.cr.CrProperties;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.hapi.config.RepositoryConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Evaluates EXM104 for a Group of its three test patients with partitioned evaluation on (one patient per
+ * partition) and off, and compares the two population reports.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+	classes = {
+		Application.class,
+		NicknameServiceConfig.class,
+		RepositoryConfig.class
+	}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-partitioned",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.cr.enabled=true",
+	"hapi.fhir.cr.measure.partitioned_evaluation_enabled=true",
+	"hapi.fhir.cr.measure.partition_size=1",
+	"hapi.fhir.cr.measure.partition_min_subjects=2",
+	"spring.main.allow-bean-definition-overriding=true"
+})
+class PartitionedMeasureEvaluationIT implements IServerSupport {
+	private static final String MEASURE_ID = "measure-EXM104-8.2.000";
+	private static final String GROUP_ID = "Group/exm104-patients";
+
+	private IGenericClient ourClient;
+	private FhirContext ourCtx;
+
+	@Autowired
+	private CrProperties crProperties;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testPartitionedReportMatchesRegularReport() throws IOException {
+		loadBundle("r4/EXM104/EXM104-8.2.000-bundle.json", ourCtx, ourClient);
+		Group group = new Group();
+		group.setId(GROUP_ID);
+		group.setType(Group.GroupType.PERSON);
+		group.setActual(true);
+		for (String patient : List.of("numer-EXM104", "denom-EXM104", "denomexcl-EXM104")) {
+			group.addMember().getEntity().setReference("Patient/" + patient);
+		}
+		ourClient.update().resource(group).execute();
+
+		crProperties.getMeasure().setPartitioned_evaluation_enabled(true);
+		MeasureReport partitioned = evaluateMeasure();
+		crProperties.getMeasure().setPartitioned_evaluation_enabled(false);
+		MeasureReport regular = evaluateMeasure();
+
+		assertEquals(regular.getGroup().size(), partitioned.getGroup().size());
+		for (int i = 0; i < regular.getGroup().size(); i++) {
+			MeasureReport.MeasureReportGroupComponent expected = regular.getGroup().get(i);
+			MeasureReport.MeasureReportGroupComponent actual = partitioned.getGroup().get(i);
+			assertEquals(expected.getPopulation().size(), actual.getPopulation().size());
+			for (MeasureReport.MeasureReportGroupPopulationComponent population : expected.getPopulation()) {
+				String code = population.getCode().getCodingFirstRep().getCode();
+				MeasureReport.MeasureReportGroupPopulationComponent other = actual.getPopulation().stream()
+					.filter(p -> code.equals(p.getCode().getCodingFirstRep().getCode()))
+					.findFirst()
+					.orElse(null);
+				assertNotNull(other, code);
+				assertEquals(population.getCount(), other.getCount(), code);
+			}
+			assertEquals(
+				expected.getMeasureScore().getValue(),
+				actual.getMeasureScore().getValue());
+		}
+		assertTrue(regular.getGroupFirstRep().getPopulationFirstRep().getCount() > 0);
+	}
+
+	private MeasureReport evaluateMeasure() {
+		Parameters inParams = new Parameters();
+		inParams.addParameter().setName("periodStart").setValue(new StringType("2019-01-01"));
+		inParams.addParameter().setName("periodEnd").setValue(new StringType("2019-12-31"));
+		inParams.addParameter().setName("reportType").setValue(new StringType("population"));
+		inParams.addParameter().setName("subject").setValue(new StringType(GROUP_ID));
+
+		Parameters outParams = ourClient
+			.operation()
+			.onInstance(new IdDt("Measure", MEASURE_ID))
+			.named("$evaluate-measure")
+			.withParameters(inParams)
+			.cacheControl(new CacheControlDirective().setNoCache(true))
+			.execute();
+		return (MeasureReport) outParams.getParameterFirstRep().getResource();
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		ourCtx = FhirContext.forR4();
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+	}
+
+	@AfterEach
+	void afterEach() {
+		crProperties.getMeasure().setPartitioned_evaluation_enabled(true);
+	}
+}
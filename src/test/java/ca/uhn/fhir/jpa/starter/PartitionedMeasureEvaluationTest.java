@@ -0,0 +1,308 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.starter.cr.MeasureProperties;
+import ca.uhn.fhir.jpa.starter.cr.PartitionedR4MeasureEvaluator;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.BackboneElement;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureEvaluatorSingle;
+import org.opencds.cqf.fhir.utility.monad.Either3;
+
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the summary report summed from the reports of partitions of subjects with the single-pass report, for a
+ * proportion measure with a stratifier and exclusions.
+ */
+class PartitionedMeasureEvaluationTest {
+
+	private static final String GROUP_ID = "Group/cohort";
+	private static final List<String> POPULATIONS = List.of(
+			"initial-population",
+			"denominator",
+			"denominator-exclusion",
+			"denominator-exception",
+			"numerator",
+			"numerator-exclusion");
+
+	// Population membership per subject, in the order of POPULATIONS, and the stratum (gender) of the subject
+	private static final Map<String, Subject> SUBJECTS = new LinkedHashMap<>();
+
+	static {
+		SUBJECTS.put("Patient/1", new Subject("female", 1, 1, 0, 0, 1, 0));
+		SUBJECTS.put("Patient/2", new Subject("female", 1, 1, 0, 0, 0, 0));
+		SUBJECTS.put("Patient/3", new Subject("male", 1, 1, 1, 0, 0, 0));
+		SUBJECTS.put("Patient/4", new Subject("male", 1, 1, 0, 0, 1, 0));
+		SUBJECTS.put("Patient/5", new Subject("female", 1, 1, 0, 1, 0, 0));
+		SUBJECTS.put("Patient/6", new Subject("male", 0, 0, 0, 0, 0, 0));
+		SUBJECTS.put("Patient/7", new Subject("female", 1, 1, 0, 0, 1, 1));
+		SUBJECTS.put("Patient/8", new Subject("male", 1, 1, 0, 0, 1, 0));
+		SUBJECTS.put("Patient/9", new Subject("other", 1, 1, 1, 0, 0, 0));
+	}
+
+	private final Set<RequestDetails> requestDetailsSeen = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<>()));
+	private ExecutorService executor;
+	private RequestDetails requestDetails;
+	private PartitionedR4MeasureEvaluator evaluator;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		Group group = new Group();
+		group.setId(GROUP_ID);
+		SUBJECTS.keySet().forEach(subject -> group.addMember().setEntity(new Reference(subject)));
+		IFhirResourceDao<Group> groupDao = mock(IFhirResourceDao.class);
+		when(groupDao.read(any(IIdType.class), any(RequestDetails.class))).thenReturn(group);
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		when(daoRegistry.getResourceDao(Group.class)).thenReturn(groupDao);
+
+		MeasureProperties measureProperties = new MeasureProperties();
+		measureProperties.setPartitioned_evaluation_enabled(true);
+		measureProperties.setPartition_size(3);
+		measureProperties.setPartition_min_subjects(2);
+
+		executor = Executors.newFixedThreadPool(2);
+		requestDetails = new SystemRequestDetails();
+		evaluator = new PartitionedR4MeasureEvaluator(
+				theRequestDetails -> {
+					requestDetailsSeen.add(theRequestDetails);
+					return new FakeMeasureEvaluator();
+				},
+				null,
+				null,
+				requestDetails,
+				daoRegistry,
+				executor,
+				measureProperties) {
+			@Override
+			protected SubjectListEvaluator subjectListEvaluator(
+					Either3<CanonicalType, IdType, Measure> theMeasure,
+					ZonedDateTime thePeriodStart,
+					ZonedDateTime thePeriodEnd,
+					Endpoint theContentEndpoint,
+					Endpoint theTerminologyEndpoint,
+					Endpoint theDataEndpoint,
+					Bundle theAdditionalData,
+					Parameters theParameters) {
+				return (theRequestDetails, theSubjectIds) -> {
+					requestDetailsSeen.add(theRequestDetails);
+					return FakeMeasureEvaluator.report(null, theSubjectIds, false);
+				};
+			}
+		};
+	}
+
+	@AfterEach
+	void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void testSummaryMatchesSinglePass() {
+		MeasureReport partitioned = evaluate(evaluator, GROUP_ID);
+		MeasureReport singlePass = evaluate(new FakeMeasureEvaluator(), GROUP_ID);
+
+		assertEquals(MeasureReport.MeasureReportType.SUMMARY, partitioned.getType());
+		assertEquals(GROUP_ID, partitioned.getSubject().getReference());
+		assertTrue(partitioned.getEvaluatedResource().isEmpty());
+
+		MeasureReportGroupComponent group = partitioned.getGroupFirstRep();
+		MeasureReportGroupComponent expectedGroup = singlePass.getGroupFirstRep();
+		assertEquals(counts(expectedGroup.getPopulation()), counts(group.getPopulation()));
+		assertScore(expectedGroup.getMeasureScore(), group.getMeasureScore());
+		// (4 - 1) / (8 - 2 - 1)
+		assertEquals(0.6, group.getMeasureScore().getValue().doubleValue(), 1e-9);
+
+		Map<String, StratifierGroupComponent> strata = strata(group);
+		Map<String, StratifierGroupComponent> expectedStrata = strata(expectedGroup);
+		assertEquals(expectedStrata.keySet(), strata.keySet());
+		for (String stratum : expectedStrata.keySet()) {
+			assertEquals(
+					counts(expectedStrata.get(stratum).getPopulation()),
+					counts(strata.get(stratum).getPopulation()),
+					stratum);
+			assertScore(expectedStrata.get(stratum).getMeasureScore(), strata.get(stratum).getMeasureScore());
+		}
+		// The only subject of this stratum is excluded from the denominator, so it has no score
+		assertFalse(strata.get("other").hasMeasureScore());
+	}
+
+	@Test
+	void testPartitionsGetOwnRequestDetails() {
+		evaluate(evaluator, GROUP_ID);
+
+		// The first of the 3 partitions is evaluated on the calling thread, the others with a copy each
+		assertEquals(3, requestDetailsSeen.size());
+		assertTrue(requestDetailsSeen.contains(requestDetails));
+	}
+
+	@Test
+	void testIndividualReportNotPartitioned() {
+		MeasureReport report = evaluate(evaluator, "Patient/1", "subject");
+
+		assertEquals(MeasureReport.MeasureReportType.INDIVIDUAL, report.getType());
+		assertEquals(1, requestDetailsSeen.size());
+		assertFalse(report.getGroupFirstRep().getStratifier().isEmpty());
+	}
+
+	private static MeasureReport evaluate(R4MeasureEvaluatorSingle theEvaluator, String theSubject) {
+		return evaluate(theEvaluator, theSubject, "population");
+	}
+
+	private static MeasureReport evaluate(R4MeasureEvaluatorSingle theEvaluator, String theSubject, String theType) {
+		return theEvaluator.evaluate(
+				null, null, null, theType, theSubject, null, null, null, null, null, null, null, null);
+	}
+
+	private static Map<String, Integer> counts(List<? extends BackboneElement> thePopulations) {
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		for (BackboneElement population : thePopulations) {
+			if (population instanceof MeasureReport.MeasureReportGroupPopulationComponent groupPopulation) {
+				counts.put(groupPopulation.getCode().getCodingFirstRep().getCode(), groupPopulation.getCount());
+			} else if (population instanceof MeasureReport.StratifierGroupPopulationComponent stratumPopulation) {
+				counts.put(stratumPopulation.getCode().getCodingFirstRep().getCode(), stratumPopulation.getCount());
+			}
+		}
+		return counts;
+	}
+
+	private static Map<String, StratifierGroupComponent> strata(MeasureReportGroupComponent theGroup) {
+		Map<String, StratifierGroupComponent> strata = new LinkedHashMap<>();
+		theGroup.getStratifierFirstRep().getStratum().forEach(s -> strata.put(s.getValue().getText(), s));
+		return strata;
+	}
+
+	private static void assertScore(Quantity theExpected, Quantity theActual) {
+		if (theExpected == null || !theExpected.hasValue()) {
+			assertTrue(theActual == null || !theActual.hasValue());
+			return;
+		}
+		assertNotNull(theActual);
+		assertEquals(theExpected.getValue().doubleValue(), theActual.getValue().doubleValue(), 1e-9);
+	}
+
+	private record Subject(String gender, int... populations) {
+		int count(String thePopulation) {
+			return populations[POPULATIONS.indexOf(thePopulation)];
+		}
+	}
+
+	/**
+	 * Stands in for the CQL measure evaluation: an individual report per subject, or the summary of a list of subjects
+	 * or of the whole Group counted directly from the subjects and scored as the measure processor does.
+	 */
+	private static class FakeMeasureEvaluator implements R4MeasureEvaluatorSingle {
+		@Override
+		public MeasureReport evaluate(
+				Either3<CanonicalType, IdType, Measure> theMeasure,
+				ZonedDateTime thePeriodStart,
+				ZonedDateTime thePeriodEnd,
+				String theReportType,
+				String theSubjectId,
+				String theLastReceivedOn,
+				Endpoint theContentEndpoint,
+				Endpoint theTerminologyEndpoint,
+				Endpoint theDataEndpoint,
+				Bundle theAdditionalData,
+				Parameters theParameters,
+				String theProductLine,
+				String thePractitioner) {
+			boolean individual = "subject".equals(theReportType);
+			return report(theSubjectId, individual ? List.of(theSubjectId) : SUBJECTS.keySet(), individual);
+		}
+
+		static MeasureReport report(String theSubjectId, Collection<String> theSubjectIds, boolean theIndividual) {
+			List<Subject> subjects = theSubjectIds.stream().map(SUBJECTS::get).toList();
+
+			MeasureReport report = new MeasureReport();
+			report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+			report.setType(
+					theIndividual
+							? MeasureReport.MeasureReportType.INDIVIDUAL
+							: MeasureReport.MeasureReportType.SUMMARY);
+			if (theSubjectId != null) {
+				report.setSubject(new Reference(theSubjectId));
+			}
+			if (theIndividual) {
+				report.addEvaluatedResource(new Reference(theSubjectId));
+			}
+			MeasureReportGroupComponent group = report.addGroup();
+			group.setId("group-1");
+			Map<String, Integer> groupCounts = new LinkedHashMap<>();
+			Map<String, Map<String, Integer>> strataCounts = new LinkedHashMap<>();
+			subjects.forEach(subject -> {
+				Map<String, Integer> stratumCounts =
+						strataCounts.computeIfAbsent(subject.gender(), gender -> new LinkedHashMap<>());
+				for (String population : POPULATIONS) {
+					groupCounts.merge(population, subject.count(population), Integer::sum);
+					stratumCounts.merge(population, subject.count(population), Integer::sum);
+				}
+			});
+			groupCounts.forEach((code, count) -> group.addPopulation().setCode(code(code)).setCount(count));
+			group.setMeasureScore(score(groupCounts));
+			MeasureReport.MeasureReportGroupStratifierComponent stratifier = group.addStratifier();
+			stratifier.addCode().setText("gender");
+			strataCounts.forEach((gender, counts) -> {
+				StratifierGroupComponent stratum = stratifier.addStratum();
+				stratum.setValue(new CodeableConcept().setText(gender));
+				counts.forEach((code, count) -> stratum.addPopulation().setCode(code(code)).setCount(count));
+				stratum.setMeasureScore(score(counts));
+			});
+			return report;
+		}
+
+		private static CodeableConcept code(String theCode) {
+			return new CodeableConcept()
+					.addCoding(new Coding("http://terminology.hl7.org/CodeSystem/measure-population", theCode, null));
+		}
+
+		private static Quantity score(Map<String, Integer> theCounts) {
+			int denominator = theCounts.get("denominator")
+					- theCounts.get("denominator-exclusion")
+					- theCounts.get("denominator-exception");
+			if (denominator <= 0) {
+				return null;
+			}
+			int numerator = theCounts.get("numerator") - theCounts.get("numerator-exclusion");
+			return new Quantity((double) numerator / denominator);
+		}
+	}
+}